@@ -38,6 +38,7 @@ import org.apache.log4j.Logger;
 
 import digilib.image.DocuImage;
 import digilib.image.DocuImageFactory;
+import digilib.image.ImageLoaderDocuImage;
 import digilib.util.Parameter;
 import digilib.util.ParameterMap;
 
@@ -84,6 +85,8 @@ public class DigilibConfiguration extends ParameterMap {
         newParameter("docuimage-class", "digilib.image.ImageLoaderDocuImage", null, 'f');
         // degree of subsampling on image load
         newParameter("subsample-minimum", new Float(2f), null, 'f');
+        // scale JPEG images in the DCT domain on load
+        newParameter("jpeg-dct-scaling", Boolean.TRUE, null, 'f');
         // default scaling quality
         newParameter("default-quality", new Integer(2), null, 'f');
         // maximum destination image size (0 means no limit)
@@ -191,6 +194,8 @@ public class DigilibConfiguration extends ParameterMap {
         boolean dc = getAsBoolean("img-diskcache-allowed");
         // TODO: methods for all toolkits?
         ImageIO.setUseCache(dc);
+        // JPEG scaling on load
+        ImageLoaderDocuImage.setDctScaling(getAsBoolean("jpeg-dct-scaling"));
     }
 
     /**
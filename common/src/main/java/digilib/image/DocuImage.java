@@ -27,6 +27,7 @@ package digilib.image;
  */
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
@@ -72,6 +73,20 @@ public interface DocuImage {
      */
     public void loadSubimage(ImageInput ii, Rectangle region, int subsample) throws FileOpException;
 
+    /**
+     * Returns the subsample factor for loadSubimage that is not larger than
+     * subsample and that can be loaded best.
+     * 
+     * Implementations that can load some factors faster than others (e.g. 
+     * by scaling JPEG images in the DCT domain) return the largest of those 
+     * factors.
+     * 
+     * @param ii
+     * @param subsample
+     * @return
+     */
+    public int getPreferredSubsample(ImageInput ii, double subsample);
+
     /**
      * Writes the current image to an OutputStream.
      * 
@@ -202,6 +217,27 @@ public interface DocuImage {
      */
     public void mirror(double angle) throws ImageOpException;
 
+    /**
+     * This DocuImage supports the transform operation.
+     * 
+     * @return boolean
+     */
+    public boolean isTransformSupported();
+
+    /**
+     * Transforms the current image.
+     * 
+     * Replaces the current image with an image transformed by the affine 
+     * transformation <code>trafo</code> in a single operation. This can be
+     * used instead of separate scale, mirror and rotate operations. The
+     * transformed image is moved so that its bounds start at 0,0.
+     * 
+     * @param trafo
+     *            affine transformation
+     * @throws ImageOpException
+     */
+    public void transform(AffineTransform trafo) throws ImageOpException;
+
     /**
      * Enhances brightness and contrast of the current image.
      * 
@@ -234,6 +270,29 @@ public interface DocuImage {
      */
     public void enhanceRGB(float[] rgbm, float[] rgba) throws ImageOpException;
 
+    /**
+     * Changes the colors of the current image using lookup tables.
+     * 
+     * Every color channel of the current image is replaced by the value
+     * in the 256-entry lookup table for the channel. The tables 
+     * <code>rgbTables</code> for red, green and blue are used for color 
+     * images, the table <code>grayTable</code> is used for grayscale images.
+     * The alpha channel is not changed.
+     * 
+     * This can be used instead of separate enhanceRGB, enhance and 
+     * colorOp(INVERT) operations. Returns false if the tables can not be 
+     * applied to the current image.
+     * 
+     * @param rgbTables
+     *            lookup tables for red, green, blue
+     * @param grayTable
+     *            lookup table for grayscale (grayscale images are not 
+     *            changed if null)
+     * @return
+     * @throws ImageOpException
+     */
+    public boolean colorLookup(byte[][] rgbTables, byte[] grayTable) throws ImageOpException;
+
     /**
      * Operations for colorOps.
      * 
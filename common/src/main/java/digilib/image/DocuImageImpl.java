@@ -28,6 +28,7 @@ package digilib.image;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
@@ -155,6 +156,15 @@ public abstract class DocuImageImpl implements DocuImage {
         // just a do-nothing implementation
     }
 
+    public boolean isTransformSupported() {
+        // single transform not supported per default
+        return false;
+    }
+
+    public void transform(AffineTransform trafo) throws ImageOpException {
+        throw new ImageOpException("transform not supported");
+    }
+
     public void enhance(float mult, float add) throws ImageOpException {
         // just a do-nothing implementation
     }
@@ -168,10 +178,57 @@ public abstract class DocuImageImpl implements DocuImage {
         // empty implementation
     }
 
+    public int getPreferredSubsample(ImageInput ii, double subsample) {
+        // all factors are equal per default
+        return (int) Math.max(Math.floor(subsample), 1);
+    }
+
     public void enhanceRGB(float[] rgbm, float[] rgba) throws ImageOpException {
         // emtpy implementation
     }
 
+    public boolean colorLookup(byte[][] rgbTables, byte[] grayTable) throws ImageOpException {
+        // color lookup not supported per default
+        return false;
+    }
+
+    /**
+     * Returns a lookup table that applies the operation p1 = (p0*mult)+add 
+     * after the lookup table <code>table</code> (the identity if null). 
+     * 
+     * Values are truncated and clamped to [0, 255] like RescaleOp does.
+     * 
+     * @param table
+     * @param mult
+     * @param add
+     * @return
+     */
+    public static byte[] getRescaleTable(byte[] table, float mult, float add) {
+        byte[] rescaled = new byte[256];
+        for (int i = 0; i < 256; ++i) {
+            int p0 = (table != null) ? (table[i] & 0xff) : i;
+            int p1 = (int) (p0 * mult + add);
+            rescaled[i] = (byte) Math.max(Math.min(p1, 255), 0);
+        }
+        return rescaled;
+    }
+
+    /**
+     * Returns a lookup table that inverts the value after the lookup table 
+     * <code>table</code> (the identity if null). 
+     * 
+     * @param table
+     * @return
+     */
+    public static byte[] getInvertTable(byte[] table) {
+        byte[] inverted = new byte[256];
+        for (int i = 0; i < 256; ++i) {
+            int p0 = (table != null) ? (table[i] & 0xff) : i;
+            inverted[i] = (byte) (255 - p0);
+        }
+        return inverted;
+    }
+
     public void colorOp(ColorOp op) throws ImageOpException {
         // emtpy implementation
     }
@@ -0,0 +1,117 @@
+package digilib.image;
+
+/*
+ * #%L
+ * EncodedImage -- an image encoded in its output format.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.ByteArrayOutputStream;
+
+import digilib.io.FileOpException;
+
+/**
+ * An image encoded in its output format (e.g. JPEG or PNG).
+ *
+ * Holds the encoded bytes, the mime-type and the modification time of the
+ * source the image was rendered from.
+ *
+ * @author casties
+ *
+ */
+public class EncodedImage {
+
+    /** encoded image data */
+    protected byte[] data;
+
+    /** mime-type of the data */
+    protected String mimeType;
+
+    /** modification time of the source */
+    protected long sourceMTime;
+
+    /**
+     * Constructor with data, mime-type and source modification time.
+     *
+     * @param data
+     * @param mimeType
+     * @param sourceMTime
+     */
+    public EncodedImage(byte[] data, String mimeType, long sourceMTime) {
+        this.data = data;
+        this.mimeType = mimeType;
+        this.sourceMTime = sourceMTime;
+    }
+
+    /**
+     * Encodes the DocuImage img as mime-type mt.
+     *
+     * Disposes the DocuImage afterwards.
+     *
+     * @param img
+     * @param mt
+     * @param sourceMTime
+     * @return
+     * @throws ImageOpException
+     * @throws FileOpException
+     */
+    public static EncodedImage encode(DocuImage img, String mt, long sourceMTime)
+            throws ImageOpException, FileOpException {
+        try {
+            ByteArrayOutputStream ostream = new ByteArrayOutputStream(64 * 1024);
+            img.writeImage(mt, ostream);
+            return new EncodedImage(ostream.toByteArray(), mt, sourceMTime);
+        } finally {
+            img.dispose();
+        }
+    }
+
+    /**
+     * @return the encoded data
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the length of the encoded data
+     */
+    public int getLength() {
+        return data.length;
+    }
+
+    /**
+     * @return the mime-type
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return the modification time of the source
+     */
+    public long getSourceMTime() {
+        return sourceMTime;
+    }
+
+}
@@ -0,0 +1,87 @@
+package digilib.image;
+
+/*
+ * #%L
+ * Worker (Callable) that renders and encodes an image.
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOpException;
+
+/**
+ * Worker that renders an image and encodes it in its output format.
+ * 
+ * The EncodedImage can be shared by several requests for the same image. 
+ * If an ImageCache is given the EncodedImage is put in the cache.
+ * 
+ * @author casties
+ * 
+ */
+public class EncodingImageWorker implements Callable<EncodedImage> {
+
+    protected static Logger logger = Logger.getLogger(EncodingImageWorker.class);
+    private ImageWorker imageWorker;
+    private ImageJobDescription jobinfo;
+    private ImageCache imageCache;
+
+    /**
+     * @param dlConfig
+     * @param jobinfo
+     * @param imageCache
+     *            cache for the encoded image (may be null)
+     */
+    public EncodingImageWorker(DigilibConfiguration dlConfig,
+            ImageJobDescription jobinfo, ImageCache imageCache) {
+        super();
+        this.imageWorker = new ImageWorker(dlConfig, jobinfo);
+        this.jobinfo = jobinfo;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * render, encode and return the image
+     */
+    public EncodedImage call() throws FileOpException, IOException, ImageOpException {
+        DocuImage img = imageWorker.call();
+        if (img == null) {
+            // stopped
+            return null;
+        }
+        EncodedImage eimg = EncodedImage.encode(img, jobinfo.getOutputMimeType(), jobinfo.getSourceMTime());
+        if (imageCache != null) {
+            imageCache.put(jobinfo.getCanonicalKey(), eimg);
+        }
+        return eimg;
+    }
+
+    /**
+     * Set the stopNow flag. Thread stops at the next occasion.
+     */
+    public void stopNow() {
+        imageWorker.stopNow();
+    }
+
+}
@@ -0,0 +1,349 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageBufferPool -- pool of image buffers.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of reusable pixel buffers for BufferedImages.
+ * 
+ * Image operations borrow destination images with getImage() and give
+ * images they no longer use back with release(). The pixel arrays are
+ * allocated in size classes (with at most 25% waste) and pooled by size
+ * class, so an image can reuse the buffer of an image of slightly
+ * different size.
+ * 
+ * Only images of the common types with byte or int pixel arrays are
+ * pooled. Buffers smaller than minSize are left to the garbage collector.
+ * The total size of idle buffers is limited by maxSize.
+ * 
+ * Images must not be used after they have been released.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageBufferPool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageBufferPool.class);
+
+    /** maximum size of idle buffers in bytes (0 means no pooling) */
+    protected static long maxSize = 0;
+
+    /** minimum size of pooled buffers in bytes */
+    protected static int minSize = 256 * 1024;
+
+    /** current size of idle buffers in bytes */
+    protected static AtomicLong size = new AtomicLong(0);
+
+    /** idle byte buffers by length */
+    protected static ConcurrentMap<Integer, Queue<byte[]>> byteBuffers = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+
+    /** idle int buffers by length */
+    protected static ConcurrentMap<Integer, Queue<int[]>> intBuffers = new ConcurrentHashMap<Integer, Queue<int[]>>();
+
+    /** number of buffers taken from the pool */
+    protected static AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of buffers that had to be allocated */
+    protected static AtomicInteger misses = new AtomicInteger(0);
+
+    /** color models of the pooled image types */
+    protected static ColorModel[] colorModels = new ColorModel[BufferedImage.TYPE_BYTE_INDEXED];
+
+    /**
+     * Returns if images of the BufferedImage type can be pooled.
+     * 
+     * @param type
+     * @return
+     */
+    public static boolean isPooledType(int type) {
+        return (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_BYTE_GRAY || type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Returns a new image of the given size and type.
+     * 
+     * Uses a pooled buffer if possible. The image is cleared.
+     * 
+     * @param width
+     * @param height
+     * @param type
+     * @return
+     */
+    public static BufferedImage getImage(int width, int height, int type) {
+        if (maxSize == 0 || !isPooledType(type)) {
+            return new BufferedImage(width, height, type);
+        }
+        ColorModel cm = getColorModel(type);
+        WritableRaster raster = null;
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            int len = width * height;
+            if (len * 4 < minSize) {
+                return new BufferedImage(width, height, type);
+            }
+            int[] data = getIntBuffer(len);
+            DataBufferInt db = new DataBufferInt(data, len);
+            raster = Raster.createPackedRaster(db, width, height, width, ((DirectColorModel) cm).getMasks(), null);
+        } else {
+            int nb = cm.getNumComponents();
+            int len = width * height * nb;
+            if (len < minSize) {
+                return new BufferedImage(width, height, type);
+            }
+            int[] bandOffsets = new int[nb];
+            for (int i = 0; i < nb; ++i) {
+                // BGR and ABGR have reversed band order
+                bandOffsets[i] = nb - 1 - i;
+            }
+            byte[] data = getByteBuffer(len);
+            DataBufferByte db = new DataBufferByte(data, len);
+            raster = Raster.createInterleavedRaster(db, width, height, width * nb, nb, bandOffsets, null);
+        }
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Returns a new image of the given size with the same type as the image
+     * src.
+     * 
+     * Uses a pooled buffer if possible. The image is cleared.
+     * 
+     * @param src
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage getCompatibleImage(BufferedImage src, int width, int height) {
+        if (isPooledType(src.getType())) {
+            return getImage(width, height, src.getType());
+        }
+        ColorModel cm = src.getColorModel();
+        return new BufferedImage(cm, src.getRaster().createCompatibleWritableRaster(width, height),
+                src.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the pixel buffer of the image to the pool.
+     * 
+     * The image must not be used afterwards.
+     * 
+     * @param img
+     */
+    public static void release(BufferedImage img) {
+        if (img == null || maxSize == 0 || !isPooledType(img.getType())) {
+            return;
+        }
+        DataBuffer db = img.getRaster().getDataBuffer();
+        if (db.getNumBanks() != 1) {
+            return;
+        }
+        if (db instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte) db).getData();
+            int len = data.length;
+            if (len >= minSize && len == getClassSize(len) && reserve(len)) {
+                getQueue(byteBuffers, len).offer(data);
+            }
+        } else if (db instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) db).getData();
+            int len = data.length;
+            if (len * 4 >= minSize && len == getClassSize(len) && reserve(len * 4L)) {
+                getQueue(intBuffers, len).offer(data);
+            }
+        }
+    }
+
+    /**
+     * Returns a cleared byte buffer of at least length len.
+     * 
+     * @param len
+     * @return
+     */
+    protected static byte[] getByteBuffer(int len) {
+        int cs = getClassSize(len);
+        byte[] data = getQueue(byteBuffers, cs).poll();
+        if (data != null) {
+            size.addAndGet(-cs);
+            hits.incrementAndGet();
+            Arrays.fill(data, 0, len, (byte) 0);
+            return data;
+        }
+        misses.incrementAndGet();
+        return new byte[cs];
+    }
+
+    /**
+     * Returns a cleared int buffer of at least length len.
+     * 
+     * @param len
+     * @return
+     */
+    protected static int[] getIntBuffer(int len) {
+        int cs = getClassSize(len);
+        int[] data = getQueue(intBuffers, cs).poll();
+        if (data != null) {
+            size.addAndGet(-cs * 4L);
+            hits.incrementAndGet();
+            Arrays.fill(data, 0, len, 0);
+            return data;
+        }
+        misses.incrementAndGet();
+        return new int[cs];
+    }
+
+    /**
+     * Adds bytes to the size of idle buffers. Returns false if that would
+     * exceed maxSize.
+     * 
+     * @param bytes
+     * @return
+     */
+    protected static boolean reserve(long bytes) {
+        long s = size.addAndGet(bytes);
+        if (s > maxSize) {
+            size.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size class for length len: len rounded up to the highest
+     * three significant bits.
+     * 
+     * @param len
+     * @return
+     */
+    protected static int getClassSize(int len) {
+        int shift = Math.max(32 - Integer.numberOfLeadingZeros(len) - 3, 0);
+        int cs = ((len + (1 << shift) - 1) >>> shift) << shift;
+        return cs;
+    }
+
+    /**
+     * Returns the queue for the size class from the map (creates it if
+     * necessary).
+     * 
+     * @param map
+     * @param cs
+     * @return
+     */
+    protected static <T> Queue<T> getQueue(ConcurrentMap<Integer, Queue<T>> map, int cs) {
+        Queue<T> q = map.get(cs);
+        if (q == null) {
+            q = new ConcurrentLinkedQueue<T>();
+            Queue<T> oq = map.putIfAbsent(cs, q);
+            if (oq != null) {
+                q = oq;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Returns the ColorModel for the BufferedImage type.
+     * 
+     * @param type
+     * @return
+     */
+    protected static synchronized ColorModel getColorModel(int type) {
+        ColorModel cm = colorModels[type];
+        if (cm == null) {
+            cm = new BufferedImage(1, 1, type).getColorModel();
+            colorModels[type] = cm;
+        }
+        return cm;
+    }
+
+    /**
+     * Sets the maximum size of idle buffers (0 means no pooling).
+     * 
+     * @param maxSize the maximum size in bytes
+     */
+    public static void setMaxSize(long maxSize) {
+        ImageBufferPool.maxSize = maxSize;
+        if (maxSize == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * @return the maximum size of idle buffers in bytes
+     */
+    public static long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Removes all idle buffers.
+     */
+    public static void clear() {
+        byteBuffers.clear();
+        intBuffers.clear();
+        size.set(0);
+    }
+
+    /**
+     * @return the current size of idle buffers in bytes
+     */
+    public static long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of buffers taken from the pool
+     */
+    public static int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of buffers that had to be allocated
+     */
+    public static int getMisses() {
+        return misses.get();
+    }
+
+}
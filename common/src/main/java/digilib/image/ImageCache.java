@@ -0,0 +1,440 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageCache -- two-tier cache for rendered images.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache for rendered and encoded images.
+ *
+ * The cache has two tiers: a memory tier and an optional disk tier. Both
+ * tiers are bounded in size and evict the least recently used entries.
+ *
+ * Entries are keyed by the canonical key of the ImageJobDescription. Each
+ * entry stores the modification time of its source and is invalidated when
+ * the modification time of the source changes.
+ *
+ * @author casties
+ *
+ */
+public class ImageCache {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageCache.class);
+
+    /** file extension for cache files */
+    protected static final String CACHE_FILE_EXT = ".dlimg";
+
+    /** memory tier (in access order) */
+    protected LinkedHashMap<String, EncodedImage> memCache = new LinkedHashMap<String, EncodedImage>(64, 0.75f, true);
+
+    /** maximum size of the memory tier in bytes */
+    protected long maxMemSize = 0;
+
+    /** current size of the memory tier in bytes */
+    protected long memSize = 0;
+
+    /** index of the disk tier (hashed key to file size, in access order) */
+    protected LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+    /** directory of the disk tier */
+    protected File cacheDir = null;
+
+    /** maximum size of the disk tier in bytes */
+    protected long maxDiskSize = 0;
+
+    /** current size of the disk tier in bytes */
+    protected long diskSize = 0;
+
+    /** number of cache hits */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of cache misses */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /** number of invalidated entries */
+    protected AtomicInteger invalidations = new AtomicInteger(0);
+
+    /**
+     * Create ImageCache with the given maximum memory size (in bytes), cache
+     * directory and maximum disk size (in bytes).
+     *
+     * The disk tier is not used if cacheDir is null.
+     *
+     * @param maxMemSize
+     * @param cacheDir
+     * @param maxDiskSize
+     */
+    public ImageCache(long maxMemSize, File cacheDir, long maxDiskSize) {
+        this.maxMemSize = maxMemSize;
+        this.maxDiskSize = maxDiskSize;
+        if (cacheDir != null) {
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                logger.error("Unable to create image cache directory " + cacheDir);
+            } else {
+                this.cacheDir = cacheDir;
+                readDiskIndex();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached image for the key or null.
+     *
+     * Returns null and removes the entry if its source modification time is
+     * not mtime.
+     *
+     * @param key
+     * @param mtime
+     * @return
+     */
+    public EncodedImage get(String key, long mtime) {
+        EncodedImage img = null;
+        synchronized (memCache) {
+            img = memCache.get(key);
+            if (img != null && img.getSourceMTime() != mtime) {
+                // source has changed
+                memCache.remove(key);
+                memSize -= img.getLength();
+                invalidations.incrementAndGet();
+                img = null;
+            }
+        }
+        if (img == null && cacheDir != null) {
+            img = getFromDisk(key, mtime);
+            if (img != null) {
+                // promote to memory tier
+                putInMemory(key, img);
+            }
+        }
+        if (img != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return img;
+    }
+
+    /**
+     * Puts the image in the cache under the key.
+     *
+     * @param key
+     * @param img
+     */
+    public void put(String key, EncodedImage img) {
+        putInMemory(key, img);
+        if (cacheDir != null) {
+            putOnDisk(key, img);
+        }
+    }
+
+    /**
+     * Puts the image in the memory tier and evicts old entries if necessary.
+     *
+     * @param key
+     * @param img
+     */
+    protected void putInMemory(String key, EncodedImage img) {
+        if (img.getLength() > maxMemSize) {
+            // too big for memory
+            return;
+        }
+        synchronized (memCache) {
+            EncodedImage old = memCache.put(key, img);
+            if (old != null) {
+                memSize -= old.getLength();
+            }
+            memSize += img.getLength();
+            // evict least recently used entries
+            Iterator<Map.Entry<String, EncodedImage>> i = memCache.entrySet().iterator();
+            while (memSize > maxMemSize && i.hasNext()) {
+                EncodedImage e = i.next().getValue();
+                memSize -= e.getLength();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the image for the key from the disk tier.
+     *
+     * @param key
+     * @param mtime
+     * @return
+     */
+    protected EncodedImage getFromDisk(String key, long mtime) {
+        String hash = hashKey(key);
+        synchronized (diskIndex) {
+            if (diskIndex.get(hash) == null) {
+                return null;
+            }
+        }
+        File f = getCacheFile(hash);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            String fkey = in.readUTF();
+            String mt = in.readUTF();
+            long fmtime = in.readLong();
+            if (!fkey.equals(key) || fmtime != mtime) {
+                // hash collision or source has changed
+                in.close();
+                in = null;
+                removeFromDisk(hash);
+                invalidations.incrementAndGet();
+                return null;
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new EncodedImage(data, mt, fmtime);
+        } catch (IOException e) {
+            logger.warn("Error reading image cache file " + f + ": " + e);
+            removeFromDisk(hash);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the image under the key in the disk tier and evicts old entries
+     * if necessary.
+     *
+     * @param key
+     * @param img
+     */
+    protected void putOnDisk(String key, EncodedImage img) {
+        String hash = hashKey(key);
+        File f = getCacheFile(hash);
+        File tf = new File(cacheDir, hash + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            // write to temp file first
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tf)));
+            out.writeUTF(key);
+            out.writeUTF(img.getMimeType());
+            out.writeLong(img.getSourceMTime());
+            out.writeInt(img.getLength());
+            out.write(img.getData());
+            out.close();
+            out = null;
+            // then move into place
+            f.delete();
+            if (!tf.renameTo(f)) {
+                logger.warn("Unable to rename image cache file " + tf);
+                tf.delete();
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Error writing image cache file " + tf + ": " + e);
+            tf.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        synchronized (diskIndex) {
+            Long old = diskIndex.put(hash, f.length());
+            if (old != null) {
+                diskSize -= old;
+            }
+            diskSize += f.length();
+            // evict least recently used entries
+            Iterator<Map.Entry<String, Long>> i = diskIndex.entrySet().iterator();
+            while (diskSize > maxDiskSize && i.hasNext()) {
+                Map.Entry<String, Long> e = i.next();
+                diskSize -= e.getValue();
+                getCacheFile(e.getKey()).delete();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry with the hashed key from the disk tier.
+     *
+     * @param hash
+     */
+    protected void removeFromDisk(String hash) {
+        synchronized (diskIndex) {
+            Long old = diskIndex.remove(hash);
+            if (old != null) {
+                diskSize -= old;
+            }
+            getCacheFile(hash).delete();
+        }
+    }
+
+    /**
+     * Reads the existing files in the cache directory into the disk index
+     * (oldest first).
+     */
+    protected void readDiskIndex() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long d = f1.lastModified() - f2.lastModified();
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+        synchronized (diskIndex) {
+            for (File f : files) {
+                String fn = f.getName();
+                if (fn.endsWith(CACHE_FILE_EXT)) {
+                    String hash = fn.substring(0, fn.length() - CACHE_FILE_EXT.length());
+                    diskIndex.put(hash, f.length());
+                    diskSize += f.length();
+                } else if (fn.contains(".tmp")) {
+                    // left over temp file
+                    f.delete();
+                }
+            }
+        }
+        logger.info("Image cache in " + cacheDir + ": " + diskIndex.size() + " files, " + diskSize + " bytes.");
+    }
+
+    /**
+     * Returns the cache file for the hashed key.
+     *
+     * @param hash
+     * @return
+     */
+    protected File getCacheFile(String hash) {
+        return new File(cacheDir, hash + CACHE_FILE_EXT);
+    }
+
+    /**
+     * Returns a hex-encoded SHA-1 hash of the key.
+     *
+     * @param key
+     * @return
+     */
+    public static String hashKey(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of entries in the memory tier
+     */
+    public int getMemEntries() {
+        synchronized (memCache) {
+            return memCache.size();
+        }
+    }
+
+    /**
+     * @return the size of the memory tier in bytes
+     */
+    public long getMemSize() {
+        return memSize;
+    }
+
+    /**
+     * @return the number of entries in the disk tier
+     */
+    public int getDiskEntries() {
+        synchronized (diskIndex) {
+            return diskIndex.size();
+        }
+    }
+
+    /**
+     * @return the size of the disk tier in bytes
+     */
+    public long getDiskSize() {
+        return diskSize;
+    }
+
+    /**
+     * @return the number of cache hits
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cache misses
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of invalidated entries
+     */
+    public int getInvalidations() {
+        return invalidations.get();
+    }
+
+}
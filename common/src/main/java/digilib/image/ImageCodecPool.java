@@ -0,0 +1,200 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageCodecPool -- pool of ImageIO readers and writers.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of ImageIO ImageReaders and ImageWriters by mime-type.
+ * 
+ * Readers and writers are reset when they are returned to the pool so they
+ * can be used again without looking up the plugin and setting up the codec.
+ * The number of idle instances per mime-type is limited by maxIdle.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageCodecPool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageCodecPool.class);
+
+    /** maximum number of idle readers or writers per mime-type */
+    protected static int maxIdle = 8;
+
+    /** idle readers by mime-type */
+    protected static ConcurrentMap<String, Queue<ImageReader>> readers = new ConcurrentHashMap<String, Queue<ImageReader>>();
+
+    /** idle writers by mime-type */
+    protected static ConcurrentMap<String, Queue<ImageWriter>> writers = new ConcurrentHashMap<String, Queue<ImageWriter>>();
+
+    /** number of readers and writers taken from the pool */
+    protected static AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of readers and writers created */
+    protected static AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Returns an ImageReader for the mime-type or null if there is none.
+     * 
+     * The reader should be returned with releaseReader().
+     * 
+     * @param mt
+     * @return
+     */
+    public static ImageReader getReader(String mt) {
+        ImageReader reader = getQueue(readers, mt).poll();
+        if (reader != null) {
+            hits.incrementAndGet();
+            return reader;
+        }
+        Iterator<ImageReader> i = ImageIO.getImageReadersByMIMEType(mt);
+        if (!i.hasNext()) {
+            return null;
+        }
+        misses.incrementAndGet();
+        reader = i.next();
+        logger.debug("new ImageReader for " + mt + ": " + reader.getClass());
+        return reader;
+    }
+
+    /**
+     * Resets the ImageReader and returns it to the pool.
+     * 
+     * @param mt
+     * @param reader
+     */
+    public static void releaseReader(String mt, ImageReader reader) {
+        reader.reset();
+        Queue<ImageReader> q = getQueue(readers, mt);
+        if (q.size() < maxIdle) {
+            q.offer(reader);
+        } else {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Returns an ImageWriter for the mime-type or null if there is none.
+     * 
+     * The writer should be returned with releaseWriter().
+     * 
+     * @param mt
+     * @return
+     */
+    public static ImageWriter getWriter(String mt) {
+        ImageWriter writer = getQueue(writers, mt).poll();
+        if (writer != null) {
+            hits.incrementAndGet();
+            return writer;
+        }
+        Iterator<ImageWriter> i = ImageIO.getImageWritersByMIMEType(mt);
+        if (!i.hasNext()) {
+            return null;
+        }
+        misses.incrementAndGet();
+        writer = i.next();
+        logger.debug("new ImageWriter for " + mt + ": " + writer.getClass());
+        return writer;
+    }
+
+    /**
+     * Resets the ImageWriter and returns it to the pool.
+     * 
+     * @param mt
+     * @param writer
+     */
+    public static void releaseWriter(String mt, ImageWriter writer) {
+        writer.reset();
+        Queue<ImageWriter> q = getQueue(writers, mt);
+        if (q.size() < maxIdle) {
+            q.offer(writer);
+        } else {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Returns the queue for the mime-type from the map (creates it if
+     * necessary).
+     * 
+     * @param map
+     * @param mt
+     * @return
+     */
+    protected static <T> Queue<T> getQueue(ConcurrentMap<String, Queue<T>> map, String mt) {
+        Queue<T> q = map.get(mt);
+        if (q == null) {
+            q = new ConcurrentLinkedQueue<T>();
+            Queue<T> oq = map.putIfAbsent(mt, q);
+            if (oq != null) {
+                q = oq;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * @param maxIdle the maximum number of idle readers or writers per mime-type
+     */
+    public static void setMaxIdle(int maxIdle) {
+        ImageCodecPool.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return the maximum number of idle readers or writers per mime-type
+     */
+    public static int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return the number of readers and writers taken from the pool
+     */
+    public static int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of readers and writers created
+     */
+    public static int getMisses() {
+        return misses.get();
+    }
+
+}
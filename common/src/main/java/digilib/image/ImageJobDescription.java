@@ -29,6 +29,9 @@ package digilib.image;
 
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -88,6 +91,9 @@ public class ImageJobDescription extends ParameterMap {
     protected DocuDirCache dirCache = null;
 	protected ImageSize hiresSize = null;
 	protected ImageSize imgSize = null;
+    protected String canonicalKey = null;
+    protected Long sourceMTime = null;
+    protected long sourceLength = 0;
 
     /**
      * create empty ImageJobDescription.
@@ -902,6 +908,8 @@ public class ImageJobDescription extends ParameterMap {
             qual = 1;
         else if (hasOption("q2")) 
             qual = 2;
+        else if (hasOption("q3")) 
+            qual = 3;
         return qual;
     }
 
@@ -1054,6 +1062,106 @@ public class ImageJobDescription extends ParameterMap {
         return true;
     }
 
+    /**
+     * Returns a canonical String representation of the image operations
+     * of this job.
+     *
+     * The key is built from the effective parameters (input file, image area,
+     * scale factors, quality, output type and image operations) so that
+     * different requests resulting in the same output image have the same key.
+     *
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public String getCanonicalKey() throws IOException, ImageOpException {
+        if (canonicalKey == null) {
+            StringBuilder sb = new StringBuilder();
+            // source file identity
+            ImageInput ii = getInput();
+            if (ii.hasFile()) {
+                sb.append(ii.getFile().getPath());
+            } else {
+                sb.append(getFilePath()).append(":").append(getAsInt("pn"));
+            }
+            // area and scale
+            Rectangle2D area = getOuterImgArea();
+            sb.append("|a=").append(area.getX()).append(",").append(area.getY());
+            sb.append(",").append(area.getWidth()).append(",").append(area.getHeight());
+            sb.append("|s=").append(getScaleX()).append(",").append(getScaleY());
+            sb.append("|q=").append(getScaleQual());
+            sb.append("|t=").append(getOutputMimeType());
+            // image operations
+            if (hasOption("hmir")) {
+                sb.append("|hmir");
+            }
+            if (hasOption("vmir")) {
+                sb.append("|vmir");
+            }
+            sb.append("|rot=").append(getAsFloat("rot"));
+            float[] rgbm = getRGBM();
+            if (rgbm != null) {
+                sb.append("|rgbm=").append(Arrays.toString(rgbm));
+            }
+            float[] rgba = getRGBA();
+            if (rgba != null) {
+                sb.append("|rgba=").append(Arrays.toString(rgba));
+            }
+            sb.append("|cont=").append(getAsFloat("cont"));
+            sb.append("|brgt=").append(getAsFloat("brgt"));
+            ColorOp colop = getColOp();
+            if (colop != null) {
+                sb.append("|colop=").append(colop);
+            }
+            canonicalKey = sb.toString();
+        }
+        return canonicalKey;
+    }
+
+    /**
+     * Returns an ETag for the image of this job: a hash of the canonical key,
+     * the modification time of the source and the length of the input file.
+     *
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public String getETag() throws IOException, ImageOpException {
+        long mtime = getSourceMTime();
+        StringBuilder sb = new StringBuilder(getCanonicalKey());
+        sb.append("|").append(mtime).append("|").append(sourceLength);
+        return "\"" + ImageCache.hashKey(sb.toString()) + "\"";
+    }
+
+    /**
+     * Returns the modification time of the source of this job.
+     *
+     * Uses the later of the modification time the DocuDirectory holds from
+     * its last read and the modification time of the input file, so that
+     * replacing the file in place also changes the result. The input file
+     * is checked only once per job and its length is kept for the ETag.
+     *
+     * @return
+     * @throws IOException
+     */
+    public long getSourceMTime() throws IOException {
+        if (sourceMTime == null) {
+            long mtime = 0;
+            if (dirCache != null) {
+                DocuDirectory dd = getFileDirectory();
+                mtime = dd.getDirMTime();
+            }
+            ImageInput ii = getInput();
+            if (ii.hasFile()) {
+                BasicFileAttributes attrs = Files.readAttributes(ii.getFile().toPath(), BasicFileAttributes.class);
+                mtime = Math.max(mtime, attrs.lastModifiedTime().toMillis());
+                sourceLength = attrs.size();
+            }
+            sourceMTime = mtime;
+        }
+        return sourceMTime;
+    }
+
     /**
      * @return the docuImage
      */
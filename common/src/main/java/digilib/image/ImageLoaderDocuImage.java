@@ -31,6 +31,8 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.color.ColorSpace;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BandCombineOp;
@@ -38,13 +40,22 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ByteLookupTable;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.ConvolveOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Kernel;
 import java.awt.image.LookupOp;
 import java.awt.image.LookupTable;
 import java.awt.image.RescaleOp;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.Arrays;
@@ -80,6 +91,12 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     /** the reader object */
     protected ImageReader reader = null;
 
+    /** mime-type the reader object is pooled under (null if not pooled) */
+    protected String readerMimeType = null;
+
+    /** the input stream we opened for the reader object (closed on release) */
+    protected ImageInputStream readerStream = null;
+
     /** try to reuse reader object */
     public boolean reuseReader = false;
 
@@ -96,11 +113,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                                            1f / 9f, 1f / 9f, 1f / 9f }) };
 
     /* lookup tables for inverting images (byte) */
-    protected static LookupTable invertSingleByteTable;
-    protected static LookupTable invertRgbaByteTable;
-    protected static boolean needsInvertRgba = false;
-    /* RescaleOp for contrast/brightness operation */
-    protected static boolean needsRescaleRgba = false;
+    protected static byte[] invertByte;
+    protected static byte[] orderedByte;
     /* lookup table for false-color */
     protected static LookupTable mapBgrByteTable;
     protected static boolean needsMapBgr = false;
@@ -108,13 +122,17 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     protected static boolean setDestSrgb = true;
     /* set destination type to sRGB if available, even for non-RGB images */
     protected static boolean setDestSrgbForNonRgb = false;
+    /* size of the tiles for transposeImage (pixels) */
+    protected static final int TRANSPOSE_TILE = 64;
+    /* scale JPEG images in the DCT domain when subsampling */
+    protected static boolean dctScaling = true;
 
     static {
         /*
          * create static lookup tables
          */
-        byte[] invertByte = new byte[256];
-        byte[] orderedByte = new byte[256];
+        invertByte = new byte[256];
+        orderedByte = new byte[256];
         byte[] nullByte = new byte[256];
         byte[] mapR = new byte[256];
         byte[] mapG = new byte[256];
@@ -141,29 +159,18 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 mapB[i] = 0;
             }
         }
-        // should(!) work for all color models
-        invertSingleByteTable = new ByteLookupTable(0, invertByte);
-        invertRgbaByteTable = invertSingleByteTable;
-        // but doesn't work with alpha channel on all platforms
+        // false-color doesn't work on all platforms
         String ver = System.getProperty("java.version");
         String os = System.getProperty("os.name");
         String osver = System.getProperty("os.version");
         logger.debug("os="+os+" ver="+osver+" java_version="+ver);
         if ((os.startsWith("Linux"))
             || (os.startsWith("Mac OS X") && osver.startsWith("10.7"))) {
-            // GRAB(WTF?) works for Linux JDK1.6 with transparency
-            needsInvertRgba = true;
-            invertRgbaByteTable = new ByteLookupTable(0, new byte[][] { invertByte, invertByte, orderedByte, invertByte });
-            needsRescaleRgba = true;
             needsMapBgr = true;
-        } else if ((os.startsWith("Mac OS X") && (osver.startsWith("10.5") || osver.startsWith("10.6"))) 
-            || (os.startsWith("Windows"))) {
-            needsRescaleRgba = true;
         }
         // this hopefully works for all
         mapBgrByteTable = new ByteLookupTable(0, new byte[][] { mapR, mapG, mapB });
-        logger.debug("ImageIO Hacks: needsRescaleRgba="+needsRescaleRgba+" needsInvertRgba="+needsInvertRgba+
-                " needsMapBgr="+needsMapBgr+" setDestSrgb="+setDestSrgb+" setDestSrgbForNonRgb="+setDestSrgbForNonRgb);
+        logger.debug("ImageIO Hacks: needsMapBgr="+needsMapBgr+" setDestSrgb="+setDestSrgb+" setDestSrgbForNonRgb="+setDestSrgbForNonRgb);
     }
 
     /** the size of the current image */
@@ -216,6 +223,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                     // get size from ImageReader
                     h = reader.getHeight(0);
                     w = reader.getWidth(0);
+                    if (!reuseReader) {
+                        releaseReader();
+                    }
                 } else {
                     // get size from image
                     h = img.getHeight();
@@ -277,8 +287,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("ImageLoaderDocuimage unable to identify: "+e);
             return null;
         } finally {
-            if (!reuseReader && reader != null) {
-                reader.dispose();
+            if (!reuseReader) {
+                releaseReader();
             }
         }
     }
@@ -307,6 +317,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     /**
      * Get an ImageReader for the image file.
      * 
+     * The reader is taken from the ImageCodecPool if the mime-type is known.
+     * It should be returned with releaseReader().
+     * 
      * @return
      */
     public ImageReader getReader(ImageInput input) throws IOException {
@@ -316,6 +329,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             return reader;
         }
         ImageInputStream istream = null;
+        ImageInputStream ownStream = null;
         if (input.hasImageInputStream()) {
             // ImageInputStream input
             istream = input.getImageInputStream();
@@ -323,10 +337,11 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // file only input
             RandomAccessFile rf = new RandomAccessFile(input.getFile(), "r");
             istream = new FileImageInputStream(rf);
+            ownStream = istream;
         } else {
             throw new FileOpException("Unable to get data from ImageInput");
         }
-        Iterator<ImageReader> readers;
+        ImageReader reader = null;
         String mt = null;
         if (input.hasMimetype()) {
             // check hasMimetype first or we might get into a loop
@@ -337,24 +352,52 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
         if (mt == null) {
             logger.debug("No mime-type. Trying automagic.");
-            readers = ImageIO.getImageReaders(istream);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(istream);
+            if (readers.hasNext()) {
+                reader = readers.next();
+            }
         } else {
             logger.debug("File type:" + mt);
-            readers = ImageIO.getImageReadersByMIMEType(mt);
+            reader = ImageCodecPool.getReader(mt);
         }
-        if (!readers.hasNext()) {
+        if (reader == null) {
+            if (ownStream != null) {
+                ownStream.close();
+            }
             throw new FileOpException("Can't find Reader to load File!");
         }
-        ImageReader reader = readers.next();
         logger.debug("ImageIO: this reader: " + reader.getClass());
-        /*
-         * while (readers.hasNext()) { logger.debug("ImageIO: next reader: " +
-         * readers.next().getClass()); }
-         */
         reader.setInput(istream);
+        this.readerMimeType = mt;
+        this.readerStream = ownStream;
         return reader;
     }
 
+    /**
+     * Returns the current ImageReader to the ImageCodecPool and closes the
+     * input stream we opened for it.
+     */
+    protected void releaseReader() {
+        if (reader == null) {
+            return;
+        }
+        if (readerMimeType != null) {
+            ImageCodecPool.releaseReader(readerMimeType, reader);
+        } else {
+            reader.dispose();
+        }
+        reader = null;
+        readerMimeType = null;
+        if (readerStream != null) {
+            try {
+                readerStream.close();
+            } catch (IOException e) {
+                logger.warn("Error closing ImageInputStream: " + e);
+            }
+            readerStream = null;
+        }
+    }
+
     /* 
      * Load an image file into the Object.
      * 
@@ -363,6 +406,17 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     public void loadSubimage(ImageInput ii, Rectangle region, int prescale) throws FileOpException {
         logger.debug("loadSubimage");
         this.input = ii;
+        if (prescale > 1 && isDctScalable(ii)) {
+            /*
+             * try to scale JPEG in the DCT domain
+             */
+            BufferedImage dctImg = loadDctScaled(ii, region, prescale);
+            if (dctImg != null) {
+                img = dctImg;
+                imageSize = null;
+                return;
+            }
+        }
         // ImageReader reader = null;
         try {
             reader = getReader(ii);
@@ -396,6 +450,28 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
 				}
 			}
 			
+            /*
+             * read into pooled destination image if possible
+             */
+            ImageTypeSpecifier destType = readParam.getDestinationType();
+            if (destType == null) {
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                if (types.hasNext()) {
+                    destType = types.next();
+                }
+            }
+            if (destType != null && ImageBufferPool.isPooledType(destType.getBufferedImageType())) {
+                Rectangle srcRegion = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+                if (region != null) {
+                    srcRegion = srcRegion.intersection(region);
+                }
+                int sub = Math.max(prescale, 1);
+                int w = (srcRegion.width + sub - 1) / sub;
+                int h = (srcRegion.height + sub - 1) / sub;
+                if (w > 0 && h > 0) {
+                    readParam.setDestination(ImageBufferPool.getImage(w, h, destType.getBufferedImageType()));
+                }
+            }
             /*
              * read image
              */
@@ -414,19 +490,84 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 if (img.getColorModel().hasAlpha()) {
                     type = BufferedImage.TYPE_INT_ARGB;
                 }
-                BufferedImage lcImg = new BufferedImage(img.getWidth(), img.getHeight(), type);
+                BufferedImage lcImg = ImageBufferPool.getImage(img.getWidth(), img.getHeight(), type);
                 lcImg.createGraphics().drawImage(img, null, 0, 0);
-                img = lcImg;
+                replaceImage(lcImg);
             }
         } catch (IOException e) {
             throw new FileOpException("Unable to load File!", e);
         } finally {
-            if (!reuseReader && reader != null) {
-                reader.dispose();
+            if (!reuseReader) {
+                releaseReader();
             }
         }
     }
 
+    /* 
+     * Returns the largest DCT scale factor for JPEG images.
+     * @see digilib.image.DocuImageImpl#getPreferredSubsample(digilib.io.ImageInput, double)
+     */
+    public int getPreferredSubsample(ImageInput ii, double subsample) {
+        if (subsample >= 2 && isDctScalable(ii)) {
+            int s = 2;
+            while (s < 8 && s * 2 <= subsample) {
+                s *= 2;
+            }
+            return s;
+        }
+        return super.getPreferredSubsample(ii, subsample);
+    }
+
+    /**
+     * Returns if the image can be scaled in the DCT domain on load.
+     * 
+     * @param ii
+     * @return
+     */
+    protected boolean isDctScalable(ImageInput ii) {
+        if (!dctScaling || !ii.hasFile()) {
+            return false;
+        }
+        String mt = ii.hasMimetype() ? ii.getMimetype() : FileOps.mimeForFile(ii.getFile());
+        return "image/jpeg".equals(mt);
+    }
+
+    /**
+     * Loads the region of the JPEG image scaled by 1/scale in the DCT 
+     * domain. Returns null if the image can not be loaded this way.
+     * 
+     * @param ii
+     * @param region
+     * @param scale
+     * @return
+     */
+    protected BufferedImage loadDctScaled(ImageInput ii, Rectangle region, int scale) {
+        if (scale != 2 && scale != 4 && scale != 8) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(ii.getFile());
+            BufferedImage dimg = new JpegScaledDecoder(in).decode(region, scale);
+            logger.debug("loadDctScaled: scale=" + scale + " img=" + dimg);
+            return dimg;
+        } catch (IOException e) {
+            logger.warn("Unable to load JPEG scaled: " + e);
+        } catch (RuntimeException e) {
+            // broken JPEG data
+            logger.warn("Unable to load JPEG scaled: " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return null;
+    }
+
     /* 
      * (non-Javadoc)
      * @see digilib.image.DocuImageImpl#writeImage(java.lang.String, java.io.OutputStream)
@@ -435,6 +576,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         logger.debug("writeImage");
         // setup output
         ImageWriter writer = null;
+        String writerMimeType = null;
         ImageOutputStream imgout = null;
         try {
             imgout = ImageIO.createImageOutputStream(ostream);
@@ -446,11 +588,12 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                  */
                 if (img.getColorModel().hasAlpha()) {
                     logger.debug("BARF: JPEG with transparency!!");
-                    BufferedImage rgbImg = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    BufferedImage rgbImg = ImageBufferPool.getImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
                     rgbImg.createGraphics().drawImage(img, null, 0, 0);
-                    img = rgbImg;
+                    replaceImage(rgbImg);
                 }
-                writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+                writerMimeType = "image/jpeg";
+                writer = ImageCodecPool.getWriter(writerMimeType);
                 if (writer == null) {
                     throw new ImageOpException("Unable to get JPEG writer");
                 }
@@ -466,7 +609,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 writer.write(null, new IIOImage(img, null, null), param);
             } else if (mt == "image/png") {
                 // render output
-                writer = ImageIO.getImageWritersByFormatName("png").next();
+                writerMimeType = "image/png";
+                writer = ImageCodecPool.getWriter(writerMimeType);
                 if (writer == null) {
                     throw new ImageOpException("Unable to get PNG writer");
                 }
@@ -483,7 +627,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             throw new FileOpException("Error writing image!", e);
         } finally {
         	if (writer != null) {
-        		writer.dispose();
+        		ImageCodecPool.releaseWriter(writerMimeType, writer);
         	}
         	if (imgout != null) {
         		/* 
@@ -505,6 +649,17 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
      */
     public void scale(double scaleX, double scaleY) throws ImageOpException {
         logger.debug("scale: " + scaleX);
+        if ((scaleX < 1) && (scaleY < 1) && (quality > 2) && isAreaAverageSupported()) {
+            /*
+             * for downscaling in best quality the image is area averaged
+             */
+            int targetW = (int) Math.max(Math.round(img.getWidth() * scaleX), 1);
+            int targetH = (int) Math.max(Math.round(img.getHeight() * scaleY), 1);
+            replaceImage(scaleAreaAverage(img, targetW, targetH));
+            // invalidate image size
+            imageSize = null;
+            return;
+        }
         /* 
          * for downscaling in high quality the image is blurred first ...
          */
@@ -546,8 +701,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
         // scale with AffineTransformOp
         logger.debug("scaled from " + imgW + "x" + imgH + " img=" + img);
-        AffineTransformOp scaleOp = new AffineTransformOp(AffineTransform.getScaleInstance(scaleX, scaleY), renderHint);
-        img = scaleOp.filter(img, null);
+        replaceImage(transformImage(img, AffineTransform.getScaleInstance(scaleX, scaleY)));
         logger.debug("scaled to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
         // invalidate image size
         imageSize = null;
@@ -579,17 +733,503 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             blur = new Kernel(klen, klen, kern);
         }
         // blur with convolve operation
-        ConvolveOp blurOp = new ConvolveOp(blur, ConvolveOp.EDGE_NO_OP, renderHint);
-        BufferedImage dest = null;
-        // blur needs explicit destination image type for 3BYTE_BGR *Java2D BUG*
-        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
-            logger.debug("blur: fixing destination image type");
-            dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-        }
-        img = blurOp.filter(img, dest);
+        final ConvolveOp blurOp = new ConvolveOp(blur, ConvolveOp.EDGE_NO_OP, renderHint);
+        final BufferedImage src = img;
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        int stripes = StripeExecutor.getStripes(width, height);
+        if (stripes < 2 || src.getColorModel() instanceof IndexColorModel) {
+            BufferedImage dest = null;
+            // blur needs explicit destination image type for 3BYTE_BGR *Java2D BUG*
+            if (img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                logger.debug("blur: fixing destination image type");
+                dest = ImageBufferPool.getImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            }
+            replaceImage(blurOp.filter(img, dest));
+        } else {
+            /*
+             * blur stripes of the image with a margin of the full kernel
+             * height on both sides (the origin used by the native
+             * ConvolveOp may differ from getYOrigin() for even kernels)
+             * and copy the stripes without margin into the destination
+             */
+            final int margin = blur.getHeight();
+            final BufferedImage dest = ImageBufferPool.isPooledType(src.getType())
+                    ? ImageBufferPool.getImage(width, height, src.getType())
+                    : blurOp.createCompatibleDestImage(src, null);
+            StripeExecutor.runStripes(height, stripes, new StripeExecutor.StripeOp() {
+                public void run(int y0, int y1) {
+                    int sy0 = Math.max(y0 - margin, 0);
+                    int sy1 = Math.min(y1 + margin, height);
+                    BufferedImage srcStripe = src.getSubimage(0, sy0, width, sy1 - sy0);
+                    BufferedImage destStripe = null;
+                    // blur needs explicit destination image type for 3BYTE_BGR *Java2D BUG*
+                    if (src.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                        destStripe = ImageBufferPool.getImage(width, sy1 - sy0, BufferedImage.TYPE_3BYTE_BGR);
+                    }
+                    destStripe = blurOp.filter(srcStripe, destStripe);
+                    dest.getRaster().setDataElements(0, y0,
+                            destStripe.getRaster().createChild(0, y0 - sy0, width, y1 - y0, 0, 0, null));
+                    ImageBufferPool.release(destStripe);
+                }
+            });
+            replaceImage(dest);
+        }
         logger.debug("blurred: " + img);
     }
 
+    /**
+     * Transform the image with an AffineTransformOp using the given 
+     * transformation.
+     * 
+     * Large images are transformed in stripes of the destination image.
+     * 
+     * @param src
+     * @param trafo
+     * @return
+     */
+    protected BufferedImage transformImage(final BufferedImage src, final AffineTransform trafo) {
+        if (isRightAngleTransform(trafo)) {
+            // rotate by right angles and mirror without interpolation
+            BufferedImage dest = transposeImage(src, trafo);
+            if (dest != null) {
+                return dest;
+            }
+        }
+        AffineTransformOp trafoOp = new AffineTransformOp(trafo, renderHint);
+        if (src.getColorModel() instanceof IndexColorModel) {
+            // let filter handle color conversion
+            return trafoOp.filter(src, null);
+        }
+        final BufferedImage dest;
+        Rectangle destBounds = trafoOp.getBounds2D(src).getBounds();
+        if (ImageBufferPool.isPooledType(src.getType()) && destBounds.x + destBounds.width > 0
+                && destBounds.y + destBounds.height > 0) {
+            // same size as createCompatibleDestImage
+            dest = ImageBufferPool.getImage(destBounds.x + destBounds.width, destBounds.y + destBounds.height,
+                    src.getType());
+        } else {
+            dest = trafoOp.createCompatibleDestImage(src, null);
+        }
+        final int width = dest.getWidth();
+        int height = dest.getHeight();
+        int stripes = StripeExecutor.getStripes(width, height);
+        if (stripes < 2) {
+            return trafoOp.filter(src, dest);
+        }
+        final AffineTransform inverse;
+        try {
+            inverse = trafo.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            return trafoOp.filter(src, dest);
+        }
+        final Rectangle srcBounds = new Rectangle(0, 0, src.getWidth(), src.getHeight());
+        StripeExecutor.runStripes(height, stripes, new StripeExecutor.StripeOp() {
+            public void run(int y0, int y1) {
+                // part of the source needed for the stripe (with margin for interpolation)
+                Rectangle srcRect = inverse.createTransformedShape(new Rectangle(0, y0, width, y1 - y0)).getBounds();
+                srcRect.grow(3, 3);
+                srcRect = srcRect.intersection(srcBounds);
+                if (srcRect.isEmpty()) {
+                    return;
+                }
+                BufferedImage srcStripe = src.getSubimage(srcRect.x, srcRect.y, srcRect.width, srcRect.height);
+                // move stripe to the origin
+                AffineTransform t = AffineTransform.getTranslateInstance(0, -y0);
+                t.concatenate(trafo);
+                t.concatenate(AffineTransform.getTranslateInstance(srcRect.x, srcRect.y));
+                AffineTransformOp op = new AffineTransformOp(t, renderHint);
+                // transform into separate image and copy into destination
+                BufferedImage destStripe = ImageBufferPool.getCompatibleImage(dest, width, y1 - y0);
+                op.filter(srcStripe, destStripe);
+                dest.getRaster().setDataElements(0, y0, destStripe.getRaster());
+                ImageBufferPool.release(destStripe);
+            }
+        });
+        return dest;
+    }
+
+    /**
+     * Returns if the transformation only rotates by multiples of 90 degrees,
+     * mirrors and moves by whole pixels.
+     * 
+     * @param trafo
+     * @return
+     */
+    protected static boolean isRightAngleTransform(AffineTransform trafo) {
+        double m00 = trafo.getScaleX();
+        double m01 = trafo.getShearX();
+        double m10 = trafo.getShearY();
+        double m11 = trafo.getScaleY();
+        boolean straight = Math.abs(m01) < epsilon && Math.abs(m10) < epsilon 
+                && Math.abs(Math.abs(m00) - 1) < epsilon && Math.abs(Math.abs(m11) - 1) < epsilon;
+        boolean turned = Math.abs(m00) < epsilon && Math.abs(m11) < epsilon 
+                && Math.abs(Math.abs(m01) - 1) < epsilon && Math.abs(Math.abs(m10) - 1) < epsilon;
+        double tx = trafo.getTranslateX();
+        double ty = trafo.getTranslateY();
+        return (straight || turned) && Math.abs(tx - Math.round(tx)) < epsilon
+                && Math.abs(ty - Math.round(ty)) < epsilon;
+    }
+
+    /**
+     * Rotates the image by multiples of 90 degrees and mirrors it by copying
+     * the pixels of the underlying arrays in tiles.
+     * 
+     * The transformation must be a right angle transformation that maps the 
+     * image to the rectangle at the origin. Returns null if the image type 
+     * is not supported.
+     * 
+     * @param src
+     * @param trafo
+     * @return
+     */
+    protected BufferedImage transposeImage(BufferedImage src, AffineTransform trafo) {
+        int srcW = src.getWidth();
+        int srcH = src.getHeight();
+        boolean turned = Math.abs(trafo.getScaleX()) < epsilon;
+        final int width = turned ? srcH : srcW;
+        int height = turned ? srcW : srcH;
+        /*
+         * source position of the first destination pixel and source steps 
+         * per destination pixel in x and y
+         */
+        AffineTransform inverse;
+        try {
+            inverse = trafo.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            return null;
+        }
+        Point2D p0 = inverse.transform(new Point2D.Double(0.5, 0.5), null);
+        int sx0 = (int) Math.floor(p0.getX());
+        int sy0 = (int) Math.floor(p0.getY());
+        int sxdx = (int) Math.round(inverse.getScaleX());
+        int sydx = (int) Math.round(inverse.getShearY());
+        int sxdy = (int) Math.round(inverse.getShearX());
+        int sydy = (int) Math.round(inverse.getScaleY());
+        int sx1 = sx0 + (width - 1) * sxdx + (height - 1) * sxdy;
+        int sy1 = sy0 + (width - 1) * sydx + (height - 1) * sydy;
+        if (Math.min(sx0, sx1) < 0 || Math.max(sx0, sx1) >= srcW || Math.min(sy0, sy1) < 0
+                || Math.max(sy0, sy1) >= srcH) {
+            // not the whole image
+            return null;
+        }
+        WritableRaster srcRaster = src.getRaster();
+        DataBuffer srcDb = srcRaster.getDataBuffer();
+        SampleModel srcSm = srcRaster.getSampleModel();
+        int pixelStride;
+        int srcScanline;
+        if (srcDb.getNumBanks() == 1 && srcDb instanceof DataBufferByte && srcSm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) srcSm;
+            pixelStride = csm.getPixelStride();
+            srcScanline = csm.getScanlineStride();
+            for (int bo : csm.getBandOffsets()) {
+                if (bo >= pixelStride) {
+                    // not interleaved
+                    return null;
+                }
+            }
+        } else if (srcDb.getNumBanks() == 1 && srcDb instanceof DataBufferInt
+                && srcSm instanceof SinglePixelPackedSampleModel) {
+            pixelStride = 1;
+            srcScanline = ((SinglePixelPackedSampleModel) srcSm).getScanlineStride();
+        } else {
+            return null;
+        }
+        BufferedImage dest = ImageBufferPool.getCompatibleImage(src, width, height);
+        WritableRaster destRaster = dest.getRaster();
+        DataBuffer destDb = destRaster.getDataBuffer();
+        SampleModel destSm = destRaster.getSampleModel();
+        if (destDb.getClass() != srcDb.getClass() || destSm.getClass() != srcSm.getClass()
+                || (destSm instanceof ComponentSampleModel 
+                        && (((ComponentSampleModel) destSm).getPixelStride() != pixelStride
+                        || !Arrays.equals(((ComponentSampleModel) destSm).getBandOffsets(), 
+                                ((ComponentSampleModel) srcSm).getBandOffsets())))) {
+            // different pixel layout
+            ImageBufferPool.release(dest);
+            return null;
+        }
+        final int destScanline = (destSm instanceof ComponentSampleModel) 
+                ? ((ComponentSampleModel) destSm).getScanlineStride()
+                : ((SinglePixelPackedSampleModel) destSm).getScanlineStride();
+        // array positions of the first pixels
+        final int srcOffset = srcDb.getOffset() 
+                + (sy0 + srcRaster.getMinY() - srcRaster.getSampleModelTranslateY()) * srcScanline
+                + (sx0 + srcRaster.getMinX() - srcRaster.getSampleModelTranslateX()) * pixelStride;
+        final int destOffset = destDb.getOffset() 
+                + (destRaster.getMinY() - destRaster.getSampleModelTranslateY()) * destScanline
+                + (destRaster.getMinX() - destRaster.getSampleModelTranslateX()) * pixelStride;
+        // array steps per destination pixel
+        final int stepX = sxdx * pixelStride + sydx * srcScanline;
+        final int stepY = sxdy * pixelStride + sydy * srcScanline;
+        final int ps = pixelStride;
+        logger.debug("transposeImage: " + srcW + "x" + srcH + " to " + width + "x" + height);
+        if (srcDb instanceof DataBufferByte) {
+            final byte[] srcData = ((DataBufferByte) srcDb).getData();
+            final byte[] destData = ((DataBufferByte) destDb).getData();
+            StripeExecutor.run(width, height, new StripeExecutor.StripeOp() {
+                public void run(int y0, int y1) {
+                    // copy in tiles to stay in the cache
+                    for (int ty = y0; ty < y1; ty += TRANSPOSE_TILE) {
+                        int ty1 = Math.min(ty + TRANSPOSE_TILE, y1);
+                        for (int tx = 0; tx < width; tx += TRANSPOSE_TILE) {
+                            int tx1 = Math.min(tx + TRANSPOSE_TILE, width);
+                            for (int y = ty; y < ty1; ++y) {
+                                int si = srcOffset + y * stepY + tx * stepX;
+                                int di = destOffset + y * destScanline + tx * ps;
+                                for (int x = tx; x < tx1; ++x) {
+                                    for (int b = 0; b < ps; ++b) {
+                                        destData[di + b] = srcData[si + b];
+                                    }
+                                    si += stepX;
+                                    di += ps;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        } else {
+            final int[] srcData = ((DataBufferInt) srcDb).getData();
+            final int[] destData = ((DataBufferInt) destDb).getData();
+            StripeExecutor.run(width, height, new StripeExecutor.StripeOp() {
+                public void run(int y0, int y1) {
+                    // copy in tiles to stay in the cache
+                    for (int ty = y0; ty < y1; ty += TRANSPOSE_TILE) {
+                        int ty1 = Math.min(ty + TRANSPOSE_TILE, y1);
+                        for (int tx = 0; tx < width; tx += TRANSPOSE_TILE) {
+                            int tx1 = Math.min(tx + TRANSPOSE_TILE, width);
+                            for (int y = ty; y < ty1; ++y) {
+                                int si = srcOffset + y * stepY + tx * stepX;
+                                int di = destOffset + y * destScanline + tx;
+                                for (int x = tx; x < tx1; ++x) {
+                                    destData[di++] = srcData[si];
+                                    si += stepX;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        return dest;
+    }
+
+    /**
+     * Returns if the current image can be scaled with scaleAreaAverage.
+     * 
+     * @return
+     */
+    protected boolean isAreaAverageSupported() {
+        // averaging color indexes doesn't work
+        return !(img.getColorModel() instanceof IndexColorModel);
+    }
+
+    /**
+     * Scale the image down to width x height by area averaging.
+     * 
+     * Every destination pixel is the average of the source pixels it covers,
+     * weighted by the covered area. The image is resampled in separable 
+     * passes using precomputed weight tables for both axes. Every source 
+     * row is resampled horizontally only once.
+     * 
+     * @param src
+     * @param width
+     * @param height
+     * @return
+     */
+    public BufferedImage scaleAreaAverage(BufferedImage src, final int width, int height) {
+        logger.debug("scaleAreaAverage: " + src.getWidth() + "x" + src.getHeight() + " to " + width + "x" + height);
+        ColorModel cm = src.getColorModel();
+        final WritableRaster srcRaster = src.getRaster();
+        final int srcW = srcRaster.getWidth();
+        int srcH = srcRaster.getHeight();
+        final int nb = srcRaster.getNumBands();
+        // weight tables
+        final AreaWeights xWeights = new AreaWeights(srcW, width);
+        final AreaWeights yWeights = new AreaWeights(srcH, height);
+        // destination image
+        BufferedImage dest = ImageBufferPool.getCompatibleImage(src, width, height);
+        final WritableRaster destRaster = dest.getRaster();
+        // stripes of destination rows
+        StripeExecutor.runStripes(height, StripeExecutor.getStripes(srcW, srcH), new StripeExecutor.StripeOp() {
+            public void run(int y0, int y1) {
+                int[] srcRow = new int[srcW * nb];
+                float[] scaledRow = new float[width * nb];
+                float[] accRow = new float[width * nb];
+                int[] destRow = new int[width * nb];
+                int scaledY = -1;
+                for (int dy = y0; dy < y1; ++dy) {
+                    Arrays.fill(accRow, 0f);
+                    int sy0 = yWeights.start[dy];
+                    float[] yw = yWeights.weights[dy];
+                    for (int k = 0; k < yw.length; ++k) {
+                        int sy = sy0 + k;
+                        if (sy != scaledY) {
+                            /*
+                             * resample source row horizontally
+                             */
+                            getRowSamples(srcRaster, sy, srcRow);
+                            for (int dx = 0; dx < width; ++dx) {
+                                int sx0 = xWeights.start[dx];
+                                float[] xw = xWeights.weights[dx];
+                                for (int b = 0; b < nb; ++b) {
+                                    float v = 0f;
+                                    int si = sx0 * nb + b;
+                                    for (int j = 0; j < xw.length; ++j) {
+                                        v += xw[j] * srcRow[si];
+                                        si += nb;
+                                    }
+                                    scaledRow[dx * nb + b] = v;
+                                }
+                            }
+                            scaledY = sy;
+                        }
+                        /*
+                         * accumulate rows vertically
+                         */
+                        float w = yw[k];
+                        for (int i = 0; i < accRow.length; ++i) {
+                            accRow[i] += w * scaledRow[i];
+                        }
+                    }
+                    for (int i = 0; i < destRow.length; ++i) {
+                        destRow[i] = (int) (accRow[i] + 0.5f);
+                    }
+                    setRowSamples(destRaster, dy, destRow);
+                }
+            }
+        });
+        logger.debug("scaled: " + dest);
+        return dest;
+    }
+
+    /**
+     * Area averaging weights of source pixels for every destination pixel 
+     * along one axis.
+     */
+    protected static class AreaWeights {
+        /** first source pixel for every destination pixel */
+        public int[] start;
+        /** weights of source pixels for every destination pixel */
+        public float[][] weights;
+
+        public AreaWeights(int srcLen, int destLen) {
+            start = new int[destLen];
+            weights = new float[destLen][];
+            double step = (double) srcLen / (double) destLen;
+            for (int d = 0; d < destLen; ++d) {
+                double s0 = d * step;
+                double s1 = Math.min((d + 1) * step, srcLen);
+                int i0 = (int) Math.floor(s0);
+                int i1 = Math.min((int) Math.ceil(s1), srcLen);
+                start[d] = i0;
+                float[] w = new float[Math.max(i1 - i0, 1)];
+                for (int i = i0; i < i1; ++i) {
+                    // covered part of source pixel i
+                    w[i - i0] = (float) ((Math.min(i + 1, s1) - Math.max(i, s0)) / (s1 - s0));
+                }
+                weights[d] = w;
+            }
+        }
+    }
+
+    /**
+     * Reads the samples of all bands of row y of the raster into samples.
+     * 
+     * Reads interleaved byte and packed int rasters directly from their data.
+     * 
+     * @param raster
+     * @param y
+     * @param samples
+     */
+    protected static void getRowSamples(WritableRaster raster, int y, int[] samples) {
+        DataBuffer db = raster.getDataBuffer();
+        SampleModel sm = raster.getSampleModel();
+        int width = raster.getWidth();
+        int nb = raster.getNumBands();
+        // position of our raster in the SampleModel
+        int smx = raster.getMinX() - raster.getSampleModelTranslateX();
+        int smy = raster.getMinY() - raster.getSampleModelTranslateY() + y;
+        if (db instanceof DataBufferByte && db.getNumBanks() == 1 && sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            byte[] data = ((DataBufferByte) db).getData();
+            int[] bandOffsets = csm.getBandOffsets();
+            int pixelStride = csm.getPixelStride();
+            int pos = db.getOffset() + smy * csm.getScanlineStride() + smx * pixelStride;
+            int i = 0;
+            for (int x = 0; x < width; ++x) {
+                for (int b = 0; b < nb; ++b) {
+                    samples[i++] = data[pos + bandOffsets[b]] & 0xff;
+                }
+                pos += pixelStride;
+            }
+        } else if (db instanceof DataBufferInt && db.getNumBanks() == 1 && sm instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel spsm = (SinglePixelPackedSampleModel) sm;
+            int[] data = ((DataBufferInt) db).getData();
+            int[] masks = spsm.getBitMasks();
+            int[] shifts = spsm.getBitOffsets();
+            int pos = db.getOffset() + spsm.getOffset(smx, smy);
+            int i = 0;
+            for (int x = 0; x < width; ++x) {
+                int p = data[pos++];
+                for (int b = 0; b < nb; ++b) {
+                    samples[i++] = (p & masks[b]) >>> shifts[b];
+                }
+            }
+        } else {
+            raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1, samples);
+        }
+    }
+
+    /**
+     * Writes the samples of all bands of row y of the raster from samples.
+     * 
+     * Writes interleaved byte and packed int rasters directly to their data.
+     * 
+     * @param raster
+     * @param y
+     * @param samples
+     */
+    protected static void setRowSamples(WritableRaster raster, int y, int[] samples) {
+        DataBuffer db = raster.getDataBuffer();
+        SampleModel sm = raster.getSampleModel();
+        int width = raster.getWidth();
+        int nb = raster.getNumBands();
+        // position of our raster in the SampleModel
+        int smx = raster.getMinX() - raster.getSampleModelTranslateX();
+        int smy = raster.getMinY() - raster.getSampleModelTranslateY() + y;
+        if (db instanceof DataBufferByte && db.getNumBanks() == 1 && sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            byte[] data = ((DataBufferByte) db).getData();
+            int[] bandOffsets = csm.getBandOffsets();
+            int pixelStride = csm.getPixelStride();
+            int pos = db.getOffset() + smy * csm.getScanlineStride() + smx * pixelStride;
+            int i = 0;
+            for (int x = 0; x < width; ++x) {
+                for (int b = 0; b < nb; ++b) {
+                    data[pos + bandOffsets[b]] = (byte) samples[i++];
+                }
+                pos += pixelStride;
+            }
+        } else if (db instanceof DataBufferInt && db.getNumBanks() == 1 && sm instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel spsm = (SinglePixelPackedSampleModel) sm;
+            int[] data = ((DataBufferInt) db).getData();
+            int[] masks = spsm.getBitMasks();
+            int[] shifts = spsm.getBitOffsets();
+            int pos = db.getOffset() + spsm.getOffset(smx, smy);
+            int i = 0;
+            for (int x = 0; x < width; ++x) {
+                int p = 0;
+                for (int b = 0; b < nb; ++b) {
+                    p |= (samples[i++] << shifts[b]) & masks[b];
+                }
+                data[pos++] = p;
+            }
+        } else {
+            raster.setPixels(raster.getMinX(), raster.getMinY() + y, width, 1, samples);
+        }
+    }
+
     /* 
      * (non-Javadoc)
      * @see digilib.image.DocuImageImpl#crop(int, int, int, int)
@@ -625,10 +1265,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // move image back on screen
             logger.debug("move rotation: xoff=" + xoff + " yoff=" + yoff);
             trafo.preConcatenate(AffineTransform.getTranslateInstance(-xoff, -yoff));
-            rotOp = new AffineTransformOp(trafo, renderHint);
         }
         // transform image
-        img = rotOp.filter(img, null);
+        replaceImage(transformImage(img, trafo));
         logger.debug("rotated: " + img);
         // invalidate image size
         imageSize = null;
@@ -664,8 +1303,101 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("invalid mirror angle " + angle);
             return;
         }
-        AffineTransformOp mirOp = new AffineTransformOp(new AffineTransform(mx, 0, 0, my, tx, ty), renderHint);
-        img = mirOp.filter(img, null);
+        replaceImage(transformImage(img, new AffineTransform(mx, 0, 0, my, tx, ty)));
+        // invalidate image size
+        imageSize = null;
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see digilib.image.DocuImageImpl#isTransformSupported()
+     */
+    public boolean isTransformSupported() {
+        return true;
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see digilib.image.DocuImageImpl#transform(java.awt.geom.AffineTransform)
+     */
+    public void transform(AffineTransform trafo) throws ImageOpException {
+        logger.debug("transform: " + trafo);
+        /*
+         * split off rotation by right angles and mirroring
+         */
+        double m00 = trafo.getScaleX();
+        double m01 = trafo.getShearX();
+        double m10 = trafo.getShearY();
+        double m11 = trafo.getScaleY();
+        AffineTransform turn = null;
+        if (Math.abs(m01) < epsilon && Math.abs(m10) < epsilon && (m00 < 0 || m11 < 0)) {
+            // mirror
+            turn = new AffineTransform(Math.signum(m00), 0, 0, Math.signum(m11), 0, 0);
+        } else if (Math.abs(m00) < epsilon && Math.abs(m11) < epsilon) {
+            // rotate by 90 or 270 degrees (and mirror)
+            turn = new AffineTransform(0, Math.signum(m10), Math.signum(m01), 0, 0, 0);
+        }
+        if (turn != null) {
+            /*
+             * scale first, then turn without interpolation
+             */
+            double sx = Math.hypot(m00, m10);
+            double sy = Math.hypot(m01, m11);
+            if (Math.abs(sx - 1) > epsilon || Math.abs(sy - 1) > epsilon) {
+                transform(AffineTransform.getScaleInstance(sx, sy));
+            }
+            Rectangle2D bounds = turn.createTransformedShape(new Rectangle(0, 0, img.getWidth(), img.getHeight()))
+                    .getBounds2D();
+            turn.preConcatenate(AffineTransform.getTranslateInstance(-bounds.getX(), -bounds.getY()));
+            replaceImage(transformImage(img, turn));
+            imageSize = null;
+            return;
+        }
+        double scaleX = Math.hypot(trafo.getScaleX(), trafo.getShearY());
+        double scaleY = Math.hypot(trafo.getShearX(), trafo.getScaleY());
+        if ((scaleX < 1) && (scaleY < 1) && (quality > 2) && isAreaAverageSupported()) {
+            /*
+             * for downscaling in best quality the image is area averaged first ...
+             */
+            double imgW = img.getWidth();
+            double imgH = img.getHeight();
+            int targetW = (int) Math.max(Math.round(imgW * scaleX), 1);
+            int targetH = (int) Math.max(Math.round(imgH * scaleY), 1);
+            replaceImage(scaleAreaAverage(img, targetW, targetH));
+            imageSize = null;
+            // remaining transformation
+            trafo = new AffineTransform(trafo);
+            trafo.concatenate(AffineTransform.getScaleInstance(imgW / targetW, imgH / targetH));
+            if (Math.abs(trafo.getScaleX() - 1) < epsilon && Math.abs(trafo.getScaleY() - 1) < epsilon
+                    && Math.abs(trafo.getShearX()) < epsilon && Math.abs(trafo.getShearY()) < epsilon
+                    && Math.abs(trafo.getTranslateX()) < epsilon && Math.abs(trafo.getTranslateY()) < epsilon) {
+                // nothing left to do
+                return;
+            }
+        } else if ((scaleX <= 0.5) && (quality > 1)) {
+            /* 
+             * for downscaling in high quality the image is blurred first ...
+             */
+            int bl = (int) Math.floor(1 / scaleX);
+            blur(bl);
+        }
+        /*
+         * ... then transformed.
+         */
+        AffineTransformOp trafoOp = new AffineTransformOp(trafo, renderHint);
+        // transform bounds to see how much of the image would be off screen
+        Rectangle2D bounds = trafoOp.getBounds2D(img);
+        double xoff = bounds.getX();
+        double yoff = bounds.getY();
+        if (Math.abs(xoff) > epsilon || Math.abs(yoff) > epsilon) {
+            // move image back on screen
+            logger.debug("move transform: xoff=" + xoff + " yoff=" + yoff);
+            trafo = new AffineTransform(trafo);
+            trafo.preConcatenate(AffineTransform.getTranslateInstance(-xoff, -yoff));
+        }
+        logger.debug("transformed from " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
+        replaceImage(transformImage(img, trafo));
+        logger.debug("transformed to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
         // invalidate image size
         imageSize = null;
     }
@@ -675,33 +1407,28 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
      * @see digilib.image.DocuImageImpl#enhance(float, float)
      */
     public void enhance(float mult, float add) throws ImageOpException {
-        RescaleOp op = null;
         logger.debug("enhance: img=" + img);
-        if (needsRescaleRgba) {
-            /*
-             * Only one constant should work regardless of the number of bands
-             * according to the JDK spec. Doesn't work on JDK 1.4 for OSX and
-             * Linux (at least).
-             * 
-             * The number of constants must match the number of bands in the
-             * image.
-             */
-            int ncol = img.getColorModel().getNumComponents();
-            float[] dm = new float[ncol];
-            float[] da = new float[ncol];
-            for (int i = 0; i < ncol; i++) {
-                dm[i] = mult;
-                da[i] = add;
-            }
-            if (img.getColorModel().hasAlpha()) {
-                // alpha channel should not be scaled
-                dm[ncol-1] = 1f;
-                da[ncol-1] = 0f;
-            }
-            op = new RescaleOp(dm, da, renderHint);
-        } else {
-            op = new RescaleOp(mult, add, renderHint);
+        byte[] table = getRescaleTable(null, mult, add);
+        if (colorLookup(new byte[][] { table, table, table }, table)) {
+            return;
+        }
+        /*
+         * The number of constants must match the number of bands in the
+         * image.
+         */
+        int ncol = img.getColorModel().getNumComponents();
+        float[] dm = new float[ncol];
+        float[] da = new float[ncol];
+        for (int i = 0; i < ncol; i++) {
+            dm[i] = mult;
+            da[i] = add;
+        }
+        if (img.getColorModel().hasAlpha()) {
+            // alpha channel should not be scaled
+            dm[ncol-1] = 1f;
+            da[ncol-1] = 0f;
         }
+        RescaleOp op = new RescaleOp(dm, da, renderHint);
         op.filter(img, img);
     }
 
@@ -721,6 +1448,13 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("enhanceRGB: unknown number of color bands or coefficients (" + ncol + ")");
             return;
         }
+        byte[][] tables = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            tables[i] = getRescaleTable(null, rgbm[i], rgba[i]);
+        }
+        if (colorLookup(tables, null)) {
+            return;
+        }
         if (img.getColorModel().hasAlpha()) {
             // add constant for alpha
             rgbm = new float[] { rgbm[0], rgbm[1], rgbm[2], 1 };
@@ -730,6 +1464,101 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         scaleOp.filter(img, img);
     }
 
+    /* 
+     * (non-Javadoc)
+     * 
+     * @see digilib.image.DocuImageImpl#colorLookup(byte[][], byte[])
+     */
+    public boolean colorLookup(byte[][] rgbTables, byte[] grayTable) throws ImageOpException {
+        ColorModel cm = img.getColorModel();
+        if (cm instanceof IndexColorModel || cm.isAlphaPremultiplied()) {
+            // lookup not possible
+            return false;
+        }
+        final byte[][] tables;
+        final int ncol = cm.getNumColorComponents();
+        if (ncol == 3) {
+            tables = rgbTables;
+        } else if (ncol == 1) {
+            if (grayTable == null) {
+                // nothing to do
+                return true;
+            }
+            tables = new byte[][] { grayTable };
+        } else {
+            return false;
+        }
+        for (int i = 0; i < ncol; i++) {
+            if (cm.getComponentSize(i) != 8) {
+                // only 8 bit channels
+                return false;
+            }
+        }
+        WritableRaster raster = img.getRaster();
+        DataBuffer db = raster.getDataBuffer();
+        SampleModel sm = raster.getSampleModel();
+        final int width = raster.getWidth();
+        int height = raster.getHeight();
+        // position of our raster in the SampleModel
+        int smx = raster.getMinX() - raster.getSampleModelTranslateX();
+        int smy = raster.getMinY() - raster.getSampleModelTranslateY();
+        if (db instanceof DataBufferByte && db.getNumBanks() == 1 && sm instanceof ComponentSampleModel) {
+            /*
+             * interleaved bytes, one byte per channel
+             */
+            logger.debug("colorLookup on bytes: img=" + img);
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final byte[] data = ((DataBufferByte) db).getData();
+            final int[] bandOffsets = csm.getBandOffsets();
+            final int pixelStride = csm.getPixelStride();
+            final int scanlineStride = csm.getScanlineStride();
+            final int offset = db.getOffset() + smy * scanlineStride + smx * pixelStride;
+            StripeExecutor.run(width, height, new StripeExecutor.StripeOp() {
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; ++y) {
+                        int pos = offset + y * scanlineStride;
+                        for (int x = 0; x < width; ++x) {
+                            for (int b = 0; b < ncol; ++b) {
+                                int i = pos + bandOffsets[b];
+                                data[i] = tables[b][data[i] & 0xff];
+                            }
+                            pos += pixelStride;
+                        }
+                    }
+                }
+            });
+            return true;
+        } else if (db instanceof DataBufferInt && db.getNumBanks() == 1 && sm instanceof SinglePixelPackedSampleModel) {
+            /*
+             * packed ints, one int per pixel
+             */
+            logger.debug("colorLookup on ints: img=" + img);
+            SinglePixelPackedSampleModel spsm = (SinglePixelPackedSampleModel) sm;
+            final int[] data = ((DataBufferInt) db).getData();
+            final int[] masks = spsm.getBitMasks();
+            final int[] shifts = spsm.getBitOffsets();
+            final int scanlineStride = spsm.getScanlineStride();
+            final int offset = db.getOffset() + spsm.getOffset(smx, smy);
+            StripeExecutor.run(width, height, new StripeExecutor.StripeOp() {
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; ++y) {
+                        int pos = offset + y * scanlineStride;
+                        for (int x = 0; x < width; ++x) {
+                            int p = data[pos];
+                            for (int b = 0; b < ncol; ++b) {
+                                int v = tables[b][(p & masks[b]) >>> shifts[b]] & 0xff;
+                                p = (p & ~masks[b]) | (v << shifts[b]);
+                            }
+                            data[pos++] = p;
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -750,7 +1579,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), renderHint);
             // let filter create new image
-            img = op.filter(img, null);
+            replaceImage(op.filter(img, null));
         } else if (colop == ColorOp.NTSC_GRAY) {
             /*
              * convert image to grayscale NTSC-style: luminance = 0.2989*red +
@@ -769,9 +1598,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             BandCombineOp op = new BandCombineOp(combineFn, renderHint);
             // BandCombineOp only works on Rasters so we create a
             // new image and use its Raster
-            BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            BufferedImage dest = ImageBufferPool.getImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
             op.filter(img.getRaster(), dest.getRaster());
-            img = dest;
+            replaceImage(dest);
         } else if (colop == ColorOp.BITONAL) {
             /*
              * convert image to bitonal black and white
@@ -781,14 +1610,13 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.debug("img=" + img);
             BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
             dest.createGraphics().drawImage(img, null, 0, 0);
-            img = dest;
+            replaceImage(dest);
             logger.debug("bitonal img=" + img);
         } else if (colop == ColorOp.INVERT) {
             /*
              * invert colors i.e. invert every channel
              */
             logger.debug("Color op: inverting");
-            LookupTable invtbl = null;
             ColorModel cm = img.getColorModel();
             if (cm instanceof IndexColorModel) {
                 // invert not possible
@@ -796,13 +1624,16 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 logger.debug("Color op: unable to invert");
                 return;
             }
-            if (needsInvertRgba && cm.hasAlpha()) {
-                // fix for some cases
-                invtbl = invertRgbaByteTable;
-            } else {
-                invtbl = invertSingleByteTable;
+            if (colorLookup(new byte[][] { invertByte, invertByte, invertByte }, invertByte)) {
+                return;
+            }
+            // invert color channels but not alpha
+            int nc = cm.getNumComponents();
+            byte[][] invtbl = new byte[nc][];
+            for (int i = 0; i < nc; ++i) {
+                invtbl[i] = (i < cm.getNumColorComponents()) ? invertByte : orderedByte;
             }
-            LookupOp op = new LookupOp(invtbl, renderHint);
+            LookupOp op = new LookupOp(new ByteLookupTable(0, invtbl), renderHint);
             logger.debug("colop: image=" + img);
             op.filter(img, img);
         } else if (colop == ColorOp.MAP_GRAY_BGR) {
@@ -822,8 +1653,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                     destType = BufferedImage.TYPE_3BYTE_BGR;
                 }
             }
-            BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), destType);
-            img = grayOp.filter(img, dest);
+            BufferedImage dest = ImageBufferPool.getImage(img.getWidth(), img.getHeight(), destType);
+            replaceImage(grayOp.filter(img, dest));
             logger.debug("map_gray: image=" + img);
             // convert to false color
             LookupOp mapOp = new LookupOp(mapBgrByteTable, renderHint);
@@ -832,18 +1663,39 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
     }
 
+    /**
+     * Sets if JPEG images are scaled in the DCT domain on load.
+     * 
+     * @param dctScaling
+     */
+    public static void setDctScaling(boolean dctScaling) {
+        ImageLoaderDocuImage.dctScaling = dctScaling;
+    }
+
     /* 
      * (non-Javadoc)
      * @see digilib.image.DocuImageImpl#dispose()
      */
     public void dispose() {
-        if (reader != null) {
-            reader.dispose();
-        }
-        // is this necessary?
+        releaseReader();
+        // return image buffer to pool
+        ImageBufferPool.release(img);
         img = null;
     }
 
+    /**
+     * Replaces the current image with newImg and returns the buffer of the 
+     * current image to the ImageBufferPool.
+     * 
+     * @param newImg
+     */
+    protected void replaceImage(BufferedImage newImg) {
+        if (newImg != img) {
+            ImageBufferPool.release(img);
+        }
+        img = newImg;
+    }
+
     /* 
      * (non-Javadoc)
      * @see digilib.image.DocuImageImpl#getAwtImage()
@@ -24,6 +24,7 @@ package digilib.image;
  */
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 
@@ -105,6 +106,8 @@ public class ImageWorker implements Callable<DocuImage> {
                 } else {
                     subsamp = Math.floor(subf);
                 }
+                // use the best subsampling factor of the DocuImage
+                subsamp = docuImage.getPreferredSubsample(jobinfo.getInput(), subsamp);
                 // correct scaling factor by subsampling factor
                 scaleX *= subsamp;
                 scaleY *= subsamp;
@@ -117,8 +120,6 @@ public class ImageWorker implements Callable<DocuImage> {
                 logger.debug("ImageWorker stopping (after loading and cropping)");
                 return null;
             }
-            // and scale
-            docuImage.scale(scaleX, scaleY);
             
         } else {
             /*
@@ -135,58 +136,31 @@ public class ImageWorker implements Callable<DocuImage> {
                 logger.debug("ImageWorker stopping (after cropping)");
                 return null;
             }
-            docuImage.scale(scaleX, scaleY);
         }
         
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after scaling)");
-            return null;
-        }
-
-        /* 
-         * mirror image
-         * operation mode: "hmir": mirror horizontally, "vmir": mirror vertically
-         */
-        if (jobinfo.hasOption("hmir")) {
-            docuImage.mirror(0);
-        }
-        if (jobinfo.hasOption("vmir")) {
-            docuImage.mirror(90);
-        }
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after mirroring)");
-            return null;
-        }
-        
-        /*
-         * rotate image
-         */
-        if (jobinfo.getAsFloat("rot") != 0d) {
-            docuImage.rotate(jobinfo.getAsFloat("rot"));
+        if (docuImage.isTransformSupported()) {
             /*
-             * if (jobinfo.get_wholeRotArea()) { // crop to the inner bounding
-             * box float xcrop = (float) (docuImage.getWidth() -
-             * jobinfo.get_innerUserImgArea().getWidth() scaleXY); float ycrop =
-             * (float) (docuImage.getHeight() -
-             * jobinfo.get_innerUserImgArea().getHeight() scaleXY); if ((xcrop >
-             * 0) || (ycrop > 0)) { // only crop smaller xcrop = (xcrop > 0) ?
-             * xcrop : 0; ycrop = (ycrop > 0) ? ycrop : 0; // crop image
-             * docuImage.crop((int) (xcrop / 2), (int) (ycrop / 2), (int)
-             * (docuImage.getWidth() - xcrop), (int) (docuImage.getHeight() -
-             * ycrop)); } }
+             * scale, mirror and rotate image in one operation
              */
-
-        }
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after rotating)");
-            return null;
+            docuImage.transform(getTransform(docuImage, scaleX, scaleY));
+            if (stopNow) {
+                logger.debug("ImageWorker stopping (after transforming)");
+                return null;
+            }
+        } else {
+            scaleMirrorRotate(docuImage, scaleX, scaleY);
+            if (stopNow) {
+                logger.debug("ImageWorker stopping (after rotating)");
+                return null;
+            }
         }
-        
+
         /*
          * color modification
          */
         float[] paramRGBM = jobinfo.getRGBM();
         float[] paramRGBA = jobinfo.getRGBA();
+        float[] rgbMult = null;
         if ((paramRGBM != null) || (paramRGBA != null)) {
             // make sure we actually have two arrays
             if (paramRGBM == null) {
@@ -196,36 +170,74 @@ public class ImageWorker implements Callable<DocuImage> {
                 paramRGBA = new float[3];
             }
             // calculate "contrast" values (c=2^x)
-            float[] mult = new float[3];
+            rgbMult = new float[3];
             for (int i = 0; i < 3; i++) {
-                mult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
+                rgbMult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
             }
-            docuImage.enhanceRGB(mult, paramRGBA);
         }
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhanceRGB)");
-            return null;
-        }
-
         /*
          * contrast and brightness enhancement
          */
         float paramCONT = jobinfo.getAsFloat("cont");
         float paramBRGT = jobinfo.getAsFloat("brgt");
-        if ((paramCONT != 0f) || (paramBRGT != 0f)) {
-            float mult = (float) Math.pow(2, paramCONT);
-            docuImage.enhance(mult, paramBRGT);
+        float mult = 0f;
+        boolean enhance = ((paramCONT != 0f) || (paramBRGT != 0f));
+        if (enhance) {
+            mult = (float) Math.pow(2, paramCONT);
         }
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhance)");
-            return null;
-        }
-        
         /*
          * color operation
          */
         DocuImage.ColorOp colop = jobinfo.getColOp();
-        if (colop != null) {
+        boolean invert = (colop == DocuImage.ColorOp.INVERT);
+        
+        boolean lookupDone = false;
+        if (rgbMult != null || enhance || invert) {
+            /*
+             * try to do color modification, enhancement and inversion 
+             * with a single lookup table
+             */
+            byte[][] rgbTables = new byte[3][];
+            for (int i = 0; i < 3; i++) {
+                if (rgbMult != null) {
+                    rgbTables[i] = DocuImageImpl.getRescaleTable(null, rgbMult[i], paramRGBA[i]);
+                }
+                if (enhance) {
+                    rgbTables[i] = DocuImageImpl.getRescaleTable(rgbTables[i], mult, paramBRGT);
+                }
+                if (invert) {
+                    rgbTables[i] = DocuImageImpl.getInvertTable(rgbTables[i]);
+                }
+            }
+            byte[] grayTable = null;
+            if (enhance) {
+                grayTable = DocuImageImpl.getRescaleTable(grayTable, mult, paramBRGT);
+            }
+            if (invert) {
+                grayTable = DocuImageImpl.getInvertTable(grayTable);
+            }
+            lookupDone = docuImage.colorLookup(rgbTables, grayTable);
+        }
+        if (!lookupDone) {
+            /*
+             * separate operations
+             */
+            if (rgbMult != null) {
+                docuImage.enhanceRGB(rgbMult, paramRGBA);
+            }
+            if (stopNow) {
+                logger.debug("ImageWorker stopping (after enhanceRGB)");
+                return null;
+            }
+            if (enhance) {
+                docuImage.enhance(mult, paramBRGT);
+            }
+            if (stopNow) {
+                logger.debug("ImageWorker stopping (after enhance)");
+                return null;
+            }
+        }
+        if (colop != null && !(invert && lookupDone)) {
             docuImage.colorOp(colop);
         }
 
@@ -234,6 +246,96 @@ public class ImageWorker implements Callable<DocuImage> {
         return docuImage;
     }
 
+    /**
+     * Returns the transformation that scales the image by scaleX, scaleY and 
+     * mirrors and rotates it according to the job description.
+     * 
+     * The scale factors are corrected to round to whole pixels or else we 
+     * get a 1px black (or transparent) border.
+     * 
+     * @param img
+     * @param scaleX
+     * @param scaleY
+     * @return
+     */
+    protected AffineTransform getTransform(DocuImage img, double scaleX, double scaleY) {
+        double imgW = img.getWidth();
+        double imgH = img.getHeight();
+        double targetW = Math.max(Math.round(imgW * scaleX), 1);
+        double targetH = Math.max(Math.round(imgH * scaleY), 1);
+        logger.debug("scaling from " + imgW + "x" + imgH + " to " + targetW + "x" + targetH);
+        AffineTransform trafo = AffineTransform.getScaleInstance(targetW / imgW, targetH / imgH);
+        /* 
+         * mirror image
+         * operation mode: "hmir": mirror horizontally, "vmir": mirror vertically
+         */
+        if (jobinfo.hasOption("hmir")) {
+            trafo.preConcatenate(new AffineTransform(-1, 0, 0, 1, targetW, 0));
+        }
+        if (jobinfo.hasOption("vmir")) {
+            trafo.preConcatenate(new AffineTransform(1, 0, 0, -1, 0, targetH));
+        }
+        /*
+         * rotate image around its center
+         */
+        double angle = jobinfo.getAsFloat("rot");
+        if (angle != 0d) {
+            trafo.preConcatenate(AffineTransform.getRotateInstance(Math.toRadians(angle), targetW / 2, targetH / 2));
+        }
+        return trafo;
+    }
+
+    /**
+     * Scales, mirrors and rotates the image in separate operations.
+     * 
+     * @param img
+     * @param scaleX
+     * @param scaleY
+     * @throws ImageOpException
+     */
+    protected void scaleMirrorRotate(DocuImage img, double scaleX, double scaleY) throws ImageOpException {
+        img.scale(scaleX, scaleY);
+        if (stopNow) {
+            logger.debug("ImageWorker stopping (after scaling)");
+            return;
+        }
+
+        /* 
+         * mirror image
+         * operation mode: "hmir": mirror horizontally, "vmir": mirror vertically
+         */
+        if (jobinfo.hasOption("hmir")) {
+            img.mirror(0);
+        }
+        if (jobinfo.hasOption("vmir")) {
+            img.mirror(90);
+        }
+        if (stopNow) {
+            logger.debug("ImageWorker stopping (after mirroring)");
+            return;
+        }
+        
+        /*
+         * rotate image
+         */
+        if (jobinfo.getAsFloat("rot") != 0d) {
+            img.rotate(jobinfo.getAsFloat("rot"));
+            /*
+             * if (jobinfo.get_wholeRotArea()) { // crop to the inner bounding
+             * box float xcrop = (float) (img.getWidth() -
+             * jobinfo.get_innerUserImgArea().getWidth() scaleXY); float ycrop =
+             * (float) (img.getHeight() -
+             * jobinfo.get_innerUserImgArea().getHeight() scaleXY); if ((xcrop >
+             * 0) || (ycrop > 0)) { // only crop smaller xcrop = (xcrop > 0) ?
+             * xcrop : 0; ycrop = (ycrop > 0) ? ycrop : 0; // crop image
+             * img.crop((int) (xcrop / 2), (int) (ycrop / 2), (int)
+             * (img.getWidth() - xcrop), (int) (img.getHeight() -
+             * ycrop)); } }
+             */
+
+        }
+    }
+
     /**
      * Set the stopNow flag. Thread stops at the next occasion.
      */
@@ -0,0 +1,794 @@
+package digilib.image;
+
+/*
+ * #%L
+ * JpegScaledDecoder -- decodes JPEG images at reduced resolution.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decoder for JPEG images at 1/2, 1/4 or 1/8 of their resolution.
+ *
+ * The image is scaled in the DCT domain: only the k x k lowest frequency
+ * coefficients of every block are used in a k-point inverse DCT
+ * (k = 8 / scale), like the scaled decoding of libjpeg. Subsampled chroma
+ * components use a larger IDCT instead of upsampling if possible. The
+ * region is aligned like ImageIO's subsampling: every output pixel is the
+ * average of the scale x scale pixels containing the sample ImageIO would
+ * use. Only the blocks
+ * that intersect the requested region are transformed, decoding stops
+ * after the last row of blocks of the region.
+ *
+ * Only baseline and extended sequential Huffman JPEGs with 8 bit precision
+ * and one (gray) or three (YCbCr or RGB) components in a single scan are
+ * supported. decode() returns null for all other images and for images with
+ * an embedded ICC profile (that ImageIO applies).
+ *
+ * @author casties
+ *
+ */
+public class JpegScaledDecoder {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(JpegScaledDecoder.class);
+
+    /** natural order index of zigzag position */
+    protected static final int[] ZIGZAG = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33,
+            40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44,
+            51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    /** number of lookahead bits for Huffman decoding */
+    protected static final int LOOKAHEAD = 9;
+
+    /** k-point IDCT matrices for k = 1, 2, 4, 8 */
+    protected static float[][] idctMatrix = new float[9][];
+
+    /** tables for YCbCr to RGB conversion */
+    protected static int[] crR = new int[256];
+    protected static int[] cbB = new int[256];
+    protected static int[] crG = new int[256];
+    protected static int[] cbG = new int[256];
+
+    static {
+        for (int k = 1; k <= 8; k *= 2) {
+            float[] m = new float[k * k];
+            for (int x = 0; x < k; ++x) {
+                for (int u = 0; u < k; ++u) {
+                    double c = (u == 0) ? Math.sqrt(0.5) : 1d;
+                    m[x * k + u] = (float) (0.5 * c * Math.cos((2 * x + 1) * u * Math.PI / (2 * k)));
+                }
+            }
+            idctMatrix[k] = m;
+        }
+        for (int i = 0; i < 256; ++i) {
+            int c = i - 128;
+            crR[i] = (int) Math.round(1.402 * c);
+            cbB[i] = (int) Math.round(1.772 * c);
+            crG[i] = (int) Math.round(-0.714136 * c * 65536);
+            cbG[i] = (int) Math.round(-0.344136 * c * 65536) + 32768;
+        }
+    }
+
+    /**
+     * Huffman table with lookahead table.
+     */
+    protected static class HuffmanTable {
+        int[] maxcode = new int[18];
+        int[] valptr = new int[17];
+        int[] mincode = new int[17];
+        int[] vals;
+        byte[] lookLen = new byte[1 << LOOKAHEAD];
+        int[] lookVal = new int[1 << LOOKAHEAD];
+
+        HuffmanTable(int[] counts, int[] vals) {
+            this.vals = vals;
+            int code = 0;
+            int p = 0;
+            for (int l = 1; l <= 16; ++l) {
+                valptr[l] = p;
+                mincode[l] = code;
+                if (counts[l] > 0) {
+                    if (l <= LOOKAHEAD) {
+                        // fill lookahead entries for all codes of length l
+                        for (int i = 0; i < counts[l]; ++i) {
+                            int c = (code + i) << (LOOKAHEAD - l);
+                            for (int j = 0; j < (1 << (LOOKAHEAD - l)); ++j) {
+                                lookLen[c + j] = (byte) l;
+                                lookVal[c + j] = vals[p + i];
+                            }
+                        }
+                    }
+                    code += counts[l];
+                    p += counts[l];
+                    maxcode[l] = code - 1;
+                } else {
+                    maxcode[l] = -1;
+                }
+                code <<= 1;
+            }
+            maxcode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Image component.
+     */
+    protected static class Component {
+        int id;
+        int h;
+        int v;
+        int tq;
+        int[] qt;
+        HuffmanTable dcTable;
+        HuffmanTable acTable;
+        int pred;
+        /** size of the IDCT (samples per block in each direction) */
+        int k;
+        /** decoded samples of the current row of MCUs */
+        byte[] band;
+        int bandWidth;
+    }
+
+    protected InputStream in;
+    protected byte[] buf = new byte[64 * 1024];
+    protected int bufPos = 0;
+    protected int bufLen = 0;
+
+    protected long bitBuf = 0;
+    protected int bitCnt = 0;
+    /** marker found in the entropy coded data (or -1) */
+    protected int marker = -1;
+
+    protected int width;
+    protected int height;
+    protected Component[] components;
+    protected int[][] quantTables = new int[4][];
+    protected HuffmanTable[] dcTables = new HuffmanTable[4];
+    protected HuffmanTable[] acTables = new HuffmanTable[4];
+    protected int restartInterval = 0;
+    protected int adobeTransform = -1;
+    protected boolean jfif = false;
+    protected boolean iccProfile = false;
+
+    /**
+     * Decoder for the JPEG data in the InputStream.
+     *
+     * The stream is not closed.
+     *
+     * @param in
+     */
+    public JpegScaledDecoder(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Decodes the region (in full resolution coordinates) of the image at
+     * 1/scale resolution.
+     *
+     * The size of the resulting image is the size of the region divided by
+     * scale (rounded up). Returns null if the image or scale is not
+     * supported.
+     *
+     * @param region
+     *            the region or null for the whole image
+     * @param scale
+     *            1, 2, 4 or 8
+     * @return
+     * @throws IOException
+     */
+    public BufferedImage decode(Rectangle region, int scale) throws IOException {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8) {
+            return null;
+        }
+        if (readByte() != 0xff || readByte() != 0xd8) {
+            logger.debug("not a JPEG file");
+            return null;
+        }
+        while (true) {
+            int m = readMarker();
+            if (m == 0xc0 || m == 0xc1) {
+                // baseline or extended sequential Huffman
+                if (!readFrame()) {
+                    return null;
+                }
+            } else if ((m >= 0xc2 && m <= 0xcf) && m != 0xc4 && m != 0xc8 && m != 0xcc) {
+                logger.debug("unsupported JPEG process: SOF" + (m - 0xc0));
+                return null;
+            } else if (m == 0xc4) {
+                readHuffmanTables();
+            } else if (m == 0xdb) {
+                readQuantTables();
+            } else if (m == 0xdd) {
+                readLength();
+                restartInterval = readWord();
+            } else if (m == 0xe0 || m == 0xe2 || m == 0xee) {
+                readApp(m);
+                if (iccProfile) {
+                    logger.debug("JPEG with ICC profile");
+                    return null;
+                }
+            } else if (m == 0xda) {
+                return readScan(region, scale);
+            } else if (m == 0xd9 || m < 0) {
+                logger.debug("no image data in JPEG");
+                return null;
+            } else {
+                skip(readLength());
+            }
+        }
+    }
+
+    /**
+     * Reads the frame header. Returns false if the frame is not supported.
+     *
+     * @return
+     * @throws IOException
+     */
+    protected boolean readFrame() throws IOException {
+        readLength();
+        int precision = readByte();
+        height = readWord();
+        width = readWord();
+        int nc = readByte();
+        if (precision != 8 || height == 0 || width == 0 || (nc != 1 && nc != 3)) {
+            logger.debug("unsupported JPEG frame: precision=" + precision + " height=" + height + " components=" + nc);
+            return false;
+        }
+        components = new Component[nc];
+        for (int i = 0; i < nc; ++i) {
+            Component c = new Component();
+            c.id = readByte();
+            int hv = readByte();
+            c.h = hv >> 4;
+            c.v = hv & 15;
+            c.tq = readByte();
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.tq > 3) {
+                return false;
+            }
+            components[i] = c;
+        }
+        if (nc == 1) {
+            // single component scans are not interleaved
+            components[0].h = 1;
+            components[0].v = 1;
+        }
+        return true;
+    }
+
+    /**
+     * Reads Huffman tables.
+     *
+     * @throws IOException
+     */
+    protected void readHuffmanTables() throws IOException {
+        int len = readLength();
+        while (len > 0) {
+            int tcth = readByte();
+            int[] counts = new int[17];
+            int total = 0;
+            for (int l = 1; l <= 16; ++l) {
+                counts[l] = readByte();
+                total += counts[l];
+            }
+            int[] vals = new int[total];
+            for (int i = 0; i < total; ++i) {
+                vals[i] = readByte();
+            }
+            HuffmanTable ht = new HuffmanTable(counts, vals);
+            if ((tcth >> 4) == 0) {
+                dcTables[tcth & 3] = ht;
+            } else {
+                acTables[tcth & 3] = ht;
+            }
+            len -= 17 + total;
+        }
+    }
+
+    /**
+     * Reads quantization tables (in zigzag order).
+     *
+     * @throws IOException
+     */
+    protected void readQuantTables() throws IOException {
+        int len = readLength();
+        while (len > 0) {
+            int pqtq = readByte();
+            boolean wide = (pqtq >> 4) != 0;
+            int[] qt = new int[64];
+            for (int i = 0; i < 64; ++i) {
+                qt[i] = wide ? readWord() : readByte();
+            }
+            quantTables[pqtq & 3] = qt;
+            len -= wide ? 129 : 65;
+        }
+    }
+
+    /**
+     * Reads JFIF, ICC profile and Adobe application segments.
+     *
+     * @param m
+     * @throws IOException
+     */
+    protected void readApp(int m) throws IOException {
+        int len = readLength();
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            data[i] = (byte) readByte();
+        }
+        if (m == 0xe0 && len >= 5 && data[0] == 'J' && data[1] == 'F' && data[2] == 'I' && data[3] == 'F') {
+            jfif = true;
+        } else if (m == 0xe2 && len >= 12 && new String(data, 0, 12, "ISO-8859-1").equals("ICC_PROFILE\0")) {
+            iccProfile = true;
+        } else if (m == 0xee && len >= 12 && data[0] == 'A' && data[1] == 'd' && data[2] == 'o' && data[3] == 'b'
+                && data[4] == 'e') {
+            adobeTransform = data[11] & 0xff;
+        }
+    }
+
+    /**
+     * Reads the scan header and decodes the scan.
+     *
+     * @param region
+     * @param scale
+     * @return
+     * @throws IOException
+     */
+    protected BufferedImage readScan(Rectangle region, int scale) throws IOException {
+        if (components == null) {
+            return null;
+        }
+        readLength();
+        int ns = readByte();
+        if (ns != components.length) {
+            logger.debug("unsupported JPEG: scan with " + ns + " of " + components.length + " components");
+            return null;
+        }
+        for (int i = 0; i < ns; ++i) {
+            int cid = readByte();
+            int tdta = readByte();
+            Component c = components[i];
+            if (c.id != cid) {
+                // components in different order than in frame
+                return null;
+            }
+            c.dcTable = dcTables[(tdta >> 4) & 3];
+            c.acTable = acTables[tdta & 3];
+            c.qt = quantTables[c.tq];
+            if (c.dcTable == null || c.acTable == null || c.qt == null) {
+                return null;
+            }
+        }
+        // spectral selection and approximation (not used in sequential mode)
+        skip(3);
+        boolean rgb = false;
+        if (components.length == 3) {
+            if (adobeTransform == 0) {
+                rgb = true;
+            } else if (adobeTransform < 0 && !jfif && components[0].id == 'R' && components[1].id == 'G'
+                    && components[2].id == 'B') {
+                rgb = true;
+            }
+        }
+        return decodeScan(region, scale, rgb);
+    }
+
+    /**
+     * Decodes the entropy coded data of the scan.
+     *
+     * @param region
+     * @param scale
+     * @param rgb
+     * @return
+     * @throws IOException
+     */
+    protected BufferedImage decodeScan(Rectangle region, int scale, boolean rgb) throws IOException {
+        int k = 8 / scale;
+        int hmax = 1;
+        int vmax = 1;
+        for (Component c : components) {
+            hmax = Math.max(hmax, c.h);
+            vmax = Math.max(vmax, c.v);
+        }
+        int mcusX = (width + 8 * hmax - 1) / (8 * hmax);
+        int mcusY = (height + 8 * vmax - 1) / (8 * vmax);
+        /*
+         * region in scaled coordinates
+         */
+        Rectangle imgRect = new Rectangle(0, 0, width, height);
+        Rectangle r = (region != null) ? region.intersection(imgRect) : imgRect;
+        if (r.isEmpty()) {
+            return null;
+        }
+        // the first sample of ImageIO's subsampling grid is r.x,r.y
+        int sx0 = r.x / scale;
+        int sy0 = r.y / scale;
+        int sw = (width + scale - 1) / scale;
+        int sh = (height + scale - 1) / scale;
+        int ow = Math.min((r.width + scale - 1) / scale, sw - sx0);
+        int oh = Math.min((r.height + scale - 1) / scale, sh - sy0);
+        // MCUs needed for the region
+        int mcuW = hmax * k;
+        int mcuH = vmax * k;
+        int mcuX0 = sx0 / mcuW;
+        int mcuX1 = (sx0 + ow - 1) / mcuW;
+        int mcuY0 = sy0 / mcuH;
+        int mcuY1 = (sy0 + oh - 1) / mcuH;
+        int nMcuX = mcuX1 - mcuX0 + 1;
+        /*
+         * set up bands and column mappings
+         */
+        int nc = components.length;
+        int[][] xmap = new int[nc][ow];
+        for (int ci = 0; ci < nc; ++ci) {
+            Component c = components[ci];
+            c.k = k;
+            if (hmax * c.v == vmax * c.h && (k * hmax) / c.h <= 8) {
+                // scale subsampled components in the DCT domain
+                c.k = (k * hmax) / c.h;
+            }
+            c.bandWidth = nMcuX * c.h * c.k;
+            c.band = new byte[c.bandWidth * c.v * c.k];
+            c.pred = 0;
+            for (int ox = 0; ox < ow; ++ox) {
+                xmap[ci][ox] = ((sx0 + ox - mcuX0 * mcuW) * c.h * c.k) / mcuW;
+            }
+        }
+        int type = (nc == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        BufferedImage img = ImageBufferPool.getImage(ow, oh, type);
+        byte[] dest = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        float[] blk = new float[64];
+        float[] tmp = new float[64];
+        /*
+         * decode MCUs
+         */
+        int mcuCount = 0;
+        for (int my = 0; my <= mcuY1; ++my) {
+            boolean rowNeeded = (my >= mcuY0);
+            for (int mx = 0; mx < mcusX; ++mx) {
+                if (restartInterval > 0 && mcuCount > 0 && mcuCount % restartInterval == 0) {
+                    restart();
+                }
+                ++mcuCount;
+                boolean needed = rowNeeded && mx >= mcuX0 && mx <= mcuX1;
+                for (Component c : components) {
+                    for (int by = 0; by < c.v; ++by) {
+                        for (int bx = 0; bx < c.h; ++bx) {
+                            if (needed) {
+                                decodeBlock(c, blk, c.k);
+                                int x = ((mx - mcuX0) * c.h + bx) * c.k;
+                                int y = by * c.k;
+                                idct(blk, tmp, c.k, c.band, y * c.bandWidth + x, c.bandWidth);
+                            } else {
+                                decodeBlock(c, null, c.k);
+                            }
+                        }
+                    }
+                }
+            }
+            if (rowNeeded) {
+                // convert rows of this MCU row to output
+                int y0 = Math.max(my * mcuH, sy0);
+                int y1 = Math.min((my + 1) * mcuH, sy0 + oh);
+                for (int y = y0; y < y1; ++y) {
+                    int ly = y - my * mcuH;
+                    int di = (y - sy0) * ow * nc;
+                    if (nc == 1) {
+                        Component c = components[0];
+                        int si = ly * c.bandWidth;
+                        int[] xm = xmap[0];
+                        for (int ox = 0; ox < ow; ++ox) {
+                            dest[di++] = c.band[si + xm[ox]];
+                        }
+                    } else {
+                        Component c0 = components[0];
+                        Component c1 = components[1];
+                        Component c2 = components[2];
+                        int si0 = ((ly * c0.v * c0.k) / mcuH) * c0.bandWidth;
+                        int si1 = ((ly * c1.v * c1.k) / mcuH) * c1.bandWidth;
+                        int si2 = ((ly * c2.v * c2.k) / mcuH) * c2.bandWidth;
+                        int[] xm0 = xmap[0];
+                        int[] xm1 = xmap[1];
+                        int[] xm2 = xmap[2];
+                        for (int ox = 0; ox < ow; ++ox) {
+                            int v0 = c0.band[si0 + xm0[ox]] & 0xff;
+                            int v1 = c1.band[si1 + xm1[ox]] & 0xff;
+                            int v2 = c2.band[si2 + xm2[ox]] & 0xff;
+                            if (rgb) {
+                                dest[di++] = (byte) v2;
+                                dest[di++] = (byte) v1;
+                                dest[di++] = (byte) v0;
+                            } else {
+                                // YCbCr
+                                dest[di++] = clamp(v0 + cbB[v1]);
+                                dest[di++] = clamp(v0 + ((cbG[v1] + crG[v2]) >> 16));
+                                dest[di++] = clamp(v0 + crR[v2]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Decodes the coefficients of one block. Stores the dequantized k x k
+     * lowest frequency coefficients in blk (if blk is not null).
+     *
+     * @param c
+     * @param blk
+     * @param k
+     * @throws IOException
+     */
+    protected void decodeBlock(Component c, float[] blk, int k) throws IOException {
+        int t = decode(c.dcTable);
+        if (t > 0) {
+            c.pred += extend(getBits(t), t);
+        }
+        int[] qt = c.qt;
+        if (blk != null) {
+            for (int i = 0; i < k * k; ++i) {
+                blk[i] = 0f;
+            }
+            blk[0] = c.pred * qt[0];
+        }
+        HuffmanTable ac = c.acTable;
+        for (int i = 1; i < 64;) {
+            int rs = decode(ac);
+            int s = rs & 15;
+            int run = rs >> 4;
+            if (s == 0) {
+                if (run == 15) {
+                    i += 16;
+                    continue;
+                }
+                // end of block
+                break;
+            }
+            i += run;
+            int val = extend(getBits(s), s);
+            if (blk != null && i < 64) {
+                int z = ZIGZAG[i];
+                int u = z & 7;
+                int v = z >> 3;
+                if (u < k && v < k) {
+                    blk[v * k + u] = val * qt[i];
+                }
+            }
+            ++i;
+        }
+    }
+
+    /**
+     * k-point inverse DCT of the coefficients in blk. Writes the samples to
+     * out at offset with line stride.
+     *
+     * @param blk
+     * @param tmp
+     * @param k
+     * @param out
+     * @param offset
+     * @param stride
+     */
+    protected static void idct(float[] blk, float[] tmp, int k, byte[] out, int offset, int stride) {
+        if (k == 1) {
+            out[offset] = clamp(Math.round(blk[0] / 8f) + 128);
+            return;
+        }
+        float[] m = idctMatrix[k];
+        // rows
+        for (int v = 0; v < k; ++v) {
+            for (int x = 0; x < k; ++x) {
+                float s = 0f;
+                for (int u = 0; u < k; ++u) {
+                    s += m[x * k + u] * blk[v * k + u];
+                }
+                tmp[v * k + x] = s;
+            }
+        }
+        // columns
+        for (int y = 0; y < k; ++y) {
+            int oi = offset + y * stride;
+            for (int x = 0; x < k; ++x) {
+                float s = 0f;
+                for (int v = 0; v < k; ++v) {
+                    s += m[y * k + v] * tmp[v * k + x];
+                }
+                out[oi + x] = clamp(Math.round(s) + 128);
+            }
+        }
+    }
+
+    protected static byte clamp(int v) {
+        return (byte) ((v < 0) ? 0 : ((v > 255) ? 255 : v));
+    }
+
+    /**
+     * Decodes a Huffman coded value.
+     *
+     * @param h
+     * @return
+     * @throws IOException
+     */
+    protected int decode(HuffmanTable h) throws IOException {
+        if (bitCnt < 16) {
+            fillBits();
+        }
+        int look = (int) (bitBuf >>> (bitCnt - LOOKAHEAD)) & ((1 << LOOKAHEAD) - 1);
+        int l = h.lookLen[look];
+        if (l > 0) {
+            bitCnt -= l;
+            return h.lookVal[look];
+        }
+        for (l = LOOKAHEAD + 1; l <= 16; ++l) {
+            int code = (int) (bitBuf >>> (bitCnt - l)) & ((1 << l) - 1);
+            if (code <= h.maxcode[l]) {
+                bitCnt -= l;
+                return h.vals[h.valptr[l] + code - h.mincode[l]];
+            }
+        }
+        // corrupt data
+        bitCnt -= 16;
+        return 0;
+    }
+
+    /**
+     * Returns the next n bits.
+     *
+     * @param n
+     * @return
+     * @throws IOException
+     */
+    protected int getBits(int n) throws IOException {
+        if (bitCnt < n) {
+            fillBits();
+        }
+        bitCnt -= n;
+        return (int) (bitBuf >>> bitCnt) & ((1 << n) - 1);
+    }
+
+    protected static int extend(int v, int t) {
+        return (v < (1 << (t - 1))) ? v - (1 << t) + 1 : v;
+    }
+
+    /**
+     * Fills the bit buffer from the entropy coded data. Adds zeros after a
+     * marker.
+     *
+     * @throws IOException
+     */
+    protected void fillBits() throws IOException {
+        while (bitCnt <= 48) {
+            int b = 0;
+            if (marker < 0) {
+                b = readByte();
+                if (b == 0xff) {
+                    int b2 = readByte();
+                    while (b2 == 0xff) {
+                        b2 = readByte();
+                    }
+                    if (b2 != 0) {
+                        marker = (b2 < 0) ? 0xd9 : b2;
+                        b = 0;
+                    }
+                } else if (b < 0) {
+                    marker = 0xd9;
+                    b = 0;
+                }
+            }
+            bitBuf = (bitBuf << 8) | b;
+            bitCnt += 8;
+        }
+    }
+
+    /**
+     * Resets the decoder state at a restart marker.
+     *
+     * @throws IOException
+     */
+    protected void restart() throws IOException {
+        bitBuf = 0;
+        bitCnt = 0;
+        if (marker < 0) {
+            // find the next marker
+            int b = readByte();
+            while (b >= 0) {
+                if (b == 0xff) {
+                    b = readByte();
+                    if (b != 0 && b != 0xff) {
+                        marker = b;
+                        break;
+                    }
+                } else {
+                    b = readByte();
+                }
+            }
+        }
+        if (marker >= 0xd0 && marker <= 0xd7) {
+            marker = -1;
+        }
+        for (Component c : components) {
+            c.pred = 0;
+        }
+    }
+
+    protected int readByte() throws IOException {
+        if (bufPos >= bufLen) {
+            bufLen = in.read(buf, 0, buf.length);
+            bufPos = 0;
+            if (bufLen <= 0) {
+                bufLen = 0;
+                return -1;
+            }
+        }
+        return buf[bufPos++] & 0xff;
+    }
+
+    protected int readWord() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    /**
+     * Reads the length of a segment and returns the length of the rest.
+     *
+     * @return
+     * @throws IOException
+     */
+    protected int readLength() throws IOException {
+        return readWord() - 2;
+    }
+
+    /**
+     * Reads the next marker (or -1 at the end of the data).
+     *
+     * @return
+     * @throws IOException
+     */
+    protected int readMarker() throws IOException {
+        int b = readByte();
+        while (b >= 0 && b != 0xff) {
+            b = readByte();
+        }
+        while (b == 0xff) {
+            b = readByte();
+        }
+        return b;
+    }
+
+    protected void skip(int n) throws IOException {
+        for (int i = 0; i < n; ++i) {
+            if (readByte() < 0) {
+                return;
+            }
+        }
+    }
+
+}
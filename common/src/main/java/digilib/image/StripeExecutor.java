@@ -0,0 +1,178 @@
+package digilib.image;
+
+/*
+ * #%L
+ * StripeExecutor -- runs pixel operations on stripes of an image in parallel.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import digilib.util.DigilibJobCenter;
+
+/**
+ * Runs pixel operations on horizontal stripes of an image in parallel on a
+ * shared ForkJoinPool.
+ * 
+ * Operations are only split for images of at least minPixels pixels and 
+ * only if the image job center has no waiting jobs, so that the total 
+ * number of threads stays bounded by the number of image worker threads 
+ * plus the parallelism of the pool.
+ * 
+ * Without setup all operations run in the calling thread.
+ * 
+ * @author casties
+ * 
+ */
+public class StripeExecutor {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(StripeExecutor.class);
+
+    /** the shared pool (null if not parallel) */
+    protected static ForkJoinPool pool = null;
+
+    /** minimum number of pixels to run in parallel */
+    protected static int minPixels = 0;
+
+    /** the image job center */
+    protected static DigilibJobCenter<?> jobCenter = null;
+
+    /**
+     * Operation on the rows y0 (inclusive) to y1 (exclusive) of an image.
+     */
+    public interface StripeOp {
+        public void run(int y0, int y1);
+    }
+
+    /**
+     * Sets up the shared pool with the given number of threads.
+     * 
+     * Operations are not run in parallel if threads is less than 2.
+     * 
+     * @param threads
+     * @param minPixels
+     *            minimum number of pixels to run in parallel
+     * @param jobCenter
+     *            image job center (may be null)
+     */
+    public static synchronized void setup(int threads, int minPixels, DigilibJobCenter<?> jobCenter) {
+        shutdown();
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+            logger.debug("StripeExecutor using " + threads + " threads above " + minPixels + " pixels");
+        }
+        StripeExecutor.minPixels = minPixels;
+        StripeExecutor.jobCenter = jobCenter;
+    }
+
+    /**
+     * Shuts down the shared pool.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Returns the number of stripes to use for an image of width x height.
+     * 
+     * @param width
+     * @param height
+     * @return
+     */
+    public static int getStripes(int width, int height) {
+        ForkJoinPool p = pool;
+        if (p == null || (long) width * (long) height < minPixels) {
+            return 1;
+        }
+        if (jobCenter != null && jobCenter.getWaitingJobs() > 0) {
+            // other jobs are waiting for threads
+            return 1;
+        }
+        return Math.min(p.getParallelism(), height);
+    }
+
+    /**
+     * Runs the operation on stripes of an image of width x height.
+     * 
+     * @param width
+     * @param height
+     * @param op
+     */
+    public static void run(int width, int height, StripeOp op) {
+        runStripes(height, getStripes(width, height), op);
+    }
+
+    /**
+     * Runs the operation on the given number of stripes of an image of the
+     * given height.
+     * 
+     * @param height
+     * @param stripes
+     * @param op
+     */
+    public static void runStripes(int height, int stripes, final StripeOp op) {
+        ForkJoinPool p = pool;
+        if (stripes < 2 || p == null) {
+            op.run(0, height);
+            return;
+        }
+        logger.debug("running " + stripes + " stripes of " + height + " rows");
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(stripes);
+        for (int i = 0; i < stripes; ++i) {
+            final int y0 = (int) ((long) height * i / stripes);
+            final int y1 = (int) ((long) height * (i + 1) / stripes);
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                protected void compute() {
+                    op.run(y0, y1);
+                }
+            });
+        }
+        p.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * @return the parallelism of the shared pool (1 if not parallel)
+     */
+    public static int getParallelism() {
+        ForkJoinPool p = pool;
+        return (p != null) ? p.getParallelism() : 1;
+    }
+
+}
@@ -26,12 +26,26 @@ package digilib.io;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
 import digilib.meta.MetaFactory;
+import digilib.util.ImageSize;
 
 /**
  * DocuDirectory implementation that looks for scaled images in parallel paths
@@ -46,6 +60,29 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     protected Directory[] dirs = null;
     /** list of base directories */
     protected String[] baseDirNames = null;
+    /** executor for reading scaled directories in parallel (null means sequential) */
+    protected static ExecutorService scaledDirExecutor = null;
+
+    /**
+     * File name with precomputed basename, sorted by basename and name.
+     */
+    protected static class NameEntry implements Comparable<NameEntry> {
+        protected String name;
+        protected String basename;
+        protected File file;
+
+        public NameEntry(String name, File file) {
+            this.name = name;
+            this.basename = FileOps.basename(name);
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(NameEntry other) {
+            int c = basename.compareTo(other.basename);
+            return (c != 0) ? c : name.compareTo(other.name);
+        }
+    }
 
     /**
      * Configure object with digilib directory path and a parent DocuDirCache.
@@ -77,77 +114,428 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     }
 
     @Override
-    public synchronized boolean readDir() {
+    public synchronized boolean readDir(boolean force) {
     	// check directory first
     	if (!isValid) {
     		return false;
     	}
     	// re-check modification time because the thread may have slept
-    	if (dir.lastModified() <= dirMTime) {
+    	if (!force && dir.lastModified() <= dirMTime) {
     		return true;
     	}
-    	// read all filenames
     	logger.debug("reading directory "+this+" = "+dir.getPath());
-    	File[] allFiles = null;
-    	/*
-    	 * using ReadableFileFilter is safer (we won't get directories with file
-    	 * extensions) but slower.
-    	 */
-    	// allFiles = dir.listFiles(new FileOps.ReadableFileFilter());
-    	allFiles = dir.listFiles();
-    	if (allFiles == null) {
-    		// not a directory
-    		return false;
-    	}
     	// init parallel directories
     	if (dirs == null) {
-    		// number of base dirs
-    		int nb = baseDirNames.length;
-    		// array of parallel dirs
-    		dirs = new Directory[nb];
-    		// first entry is this directory
-    		dirs[0] = this;
-    		// fill array with the remaining directories
-    		for (int j = 1; j < nb; j++) {
-    			// add dirName to baseDirName
-    			File d = new File(baseDirNames[j], dirName);
-    			if (d.isDirectory()) {
-    				dirs[j] = new Directory(d);
-    				logger.debug("  reading scaled directory " + d.getPath());
-    				dirs[j].readDir();
-    			}
-    		}
+    	    initDirs();
     	}
-    
-    	File[] fileList = FileOps.listFiles(allFiles, FileOps.filterForClass(fileClass));
-    	// number of files in the directory
-    	int numFiles = fileList.length;
-    	if (numFiles > 0) {
-    		// create new list
-    		ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
-    		files = dl;
-    		for (File f : fileList) {
-    			DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
-    			df.setParent(this);
-    			// add the file to our list
-    			dl.add(df);
-    		}
-    		/*
-    		 * we sort the ArrayList (the list of files) for binarySearch to work 
-    		 * (DocuDirent's natural sort order is by filename)
-    		 */
-    		Collections.sort(dl);
+    	// read the scaled directories while we read this one
+    	List<Future<?>> scaledReads = readScaledDirs();
+    	long mtime = dir.lastModified();
+    	List<File> fileList = listFiles();
+    	// wait for the scaled directories
+    	for (Future<?> f : scaledReads) {
+    	    try {
+    	        f.get();
+    	    } catch (InterruptedException e) {
+    	        Thread.currentThread().interrupt();
+    	        return false;
+    	    } catch (ExecutionException e) {
+    	        logger.error("Error reading scaled directory: " + e.getCause());
+    	    }
     	}
+    	if (fileList == null) {
+    		// not a directory
+    		return false;
+    	}
+    	// create the new list of files
+    	buildFiles(fileList);
     	// clear the scaled directories
     	for (Directory d: dirs) {
     		if (d != null) {
     			d.clearFilenames();
     		}
     	}
-    	dirMTime = dir.lastModified();
+    	dirMTime = mtime;
     	// read metadata as well
     	readMeta();
+    	// identify the images in the background
+    	if (fileClass == FileClass.IMAGE) {
+    	    ImageIdentifier.identify(this);
+    	}
     	return isValid;
     }
 
+    /**
+     * Builds the sorted list of DocuDirents from the list of files and
+     * replaces the current list.
+     * 
+     * @param fileList
+     */
+    protected void buildFiles(List<File> fileList) {
+        // number of files in the directory
+        int numFiles = fileList.size();
+        // create new list
+        ArrayList<DocuDirent> dl;
+        if (fileClass == FileClass.IMAGE) {
+            dl = buildImageFileSets(fileList);
+        } else {
+            dl = new ArrayList<DocuDirent>(numFiles);
+            for (File f : fileList) {
+                DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
+                df.setParent(this);
+                // add the file to our list
+                dl.add(df);
+            }
+        }
+        /*
+         * we sort the ArrayList (the list of files) for binarySearch to work 
+         * (DocuDirent's natural sort order is by filename)
+         */
+        Collections.sort(dl);
+        // replace the list only when it is complete (requests may be using the old list)
+        files = dl;
+    }
+
+    /**
+     * Builds the ImageFileSets for the image files with the scaled images 
+     * from the other base directories.
+     * 
+     * @param fileList
+     * @return
+     */
+    protected ArrayList<DocuDirent> buildImageFileSets(List<File> fileList) {
+        NameEntry[] mainNames = getSortedNames(fileList);
+        NameEntry[][] scaledNames = getScaledNames();
+        int[] pos = new int[dirs.length];
+        ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(mainNames.length);
+        for (NameEntry mn : mainNames) {
+            NameEntry[] levels = matchScaledNames(mn, scaledNames, pos);
+            ImageFileSet fs = new ImageFileSet(mn.file, this);
+            fs.add(new ImageFile(mn.file, fs, this));
+            for (int j = 1; j < levels.length; ++j) {
+                if (levels[j] != null) {
+                    fs.add(new ImageFile(levels[j].name, fs, dirs[j]));
+                }
+            }
+            dl.add(fs);
+        }
+        return dl;
+    }
+
+    /**
+     * Returns the NameEntries of the files sorted by basename.
+     * 
+     * @param fileList
+     * @return
+     */
+    protected NameEntry[] getSortedNames(List<File> fileList) {
+        int nf = fileList.size();
+        NameEntry[] names = new NameEntry[nf];
+        for (int i = 0; i < nf; ++i) {
+            File f = fileList.get(i);
+            names[i] = new NameEntry(f.getName(), f);
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the NameEntries of the image files in the scaled directories
+     * sorted by basename (null for missing directories).
+     * 
+     * @return
+     */
+    protected NameEntry[][] getScaledNames() {
+        int nb = dirs.length;
+        NameEntry[][] scaledNames = new NameEntry[nb][];
+        for (int j = 1; j < nb; ++j) {
+            if (dirs[j] == null || dirs[j].getFilenames() == null) {
+                continue;
+            }
+            String[] fns = dirs[j].getFilenames();
+            List<NameEntry> sl = new ArrayList<NameEntry>(fns.length);
+            for (String fn : fns) {
+                if (FileOps.classForFilename(fn) == FileClass.IMAGE) {
+                    sl.add(new NameEntry(fn, null));
+                }
+            }
+            scaledNames[j] = sl.toArray(new NameEntry[sl.size()]);
+            Arrays.sort(scaledNames[j]);
+        }
+        return scaledNames;
+    }
+
+    /**
+     * Finds the scaled files for the file in all scaled directories. 
+     * 
+     * This is one step of a merge pass: the files have to be matched in
+     * the order of their basenames and pos holds the position in each
+     * scaled directory. A scaled file with the same name is preferred over
+     * other files with the same basename.
+     * 
+     * @param mn
+     * @param scaledNames
+     * @param pos
+     * @return the matching NameEntry for each base directory (mn for the first, null if missing)
+     */
+    protected NameEntry[] matchScaledNames(NameEntry mn, NameEntry[][] scaledNames, int[] pos) {
+        int nb = scaledNames.length;
+        NameEntry[] levels = new NameEntry[nb];
+        levels[0] = mn;
+        for (int j = 1; j < nb; ++j) {
+            NameEntry[] sn = scaledNames[j];
+            if (sn == null) {
+                continue;
+            }
+            // skip smaller basenames
+            int p = pos[j];
+            while (p < sn.length && sn[p].basename.compareTo(mn.basename) < 0) {
+                ++p;
+            }
+            pos[j] = p;
+            // same name or first with the same basename
+            NameEntry match = null;
+            for (int k = p; k < sn.length && sn[k].basename.equals(mn.basename); ++k) {
+                if (sn[k].name.equals(mn.name)) {
+                    match = sn[k];
+                    break;
+                }
+                if (match == null) {
+                    match = sn[k];
+                }
+            }
+            levels[j] = match;
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the files of our file class in this directory (unsorted).
+     * 
+     * The file names are filtered while the directory is read.
+     * 
+     * @return the list of files or null if the directory can not be read
+     */
+    protected List<File> listFiles() {
+        List<File> fileList = new ArrayList<File>();
+        DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) {
+                return FileOps.classForFilename(entry.getFileName().toString()) == fileClass;
+            }
+        };
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath(), filter)) {
+            for (Path p : ds) {
+                fileList.add(p.toFile());
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            logger.warn("Error reading directory " + dir + ": " + e);
+            return null;
+        }
+        return fileList;
+    }
+
+    /**
+     * Starts reading the file names of all scaled directories in parallel.
+     * 
+     * Reads the directories right away if there is no executor.
+     * 
+     * @return the Futures of the reads
+     */
+    protected List<Future<?>> readScaledDirs() {
+        List<Future<?>> reads = new ArrayList<Future<?>>(dirs.length);
+        ExecutorService ex = scaledDirExecutor;
+        for (int j = 1; j < dirs.length; j++) {
+            final Directory d = dirs[j];
+            if (d == null) {
+                continue;
+            }
+            logger.debug("  reading scaled directory " + d.getDir().getPath());
+            if (ex != null) {
+                try {
+                    reads.add(ex.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            d.readDir();
+                        }
+                    }));
+                    continue;
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+            d.readDir();
+        }
+        return reads;
+    }
+
+    /**
+     * Sets the number of threads for reading scaled directories in 
+     * parallel. Shuts down the previous threads.
+     * 
+     * @param threads
+     *            number of threads (0 means read sequentially)
+     */
+    public static synchronized void setScaledDirThreads(int threads) {
+        if (scaledDirExecutor != null) {
+            scaledDirExecutor.shutdownNow();
+            scaledDirExecutor = null;
+        }
+        if (threads > 0) {
+            scaledDirExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "digilib-dirread");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets up the array of parallel directories for scaled images.
+     */
+    protected void initDirs() {
+        // number of base dirs
+        int nb = baseDirNames.length;
+        // array of parallel dirs
+        Directory[] dl = new Directory[nb];
+        // first entry is this directory
+        dl[0] = this;
+        // fill array with the remaining directories
+        for (int j = 1; j < nb; j++) {
+            // add dirName to baseDirName
+            File d = new File(baseDirNames[j], dirName);
+            if (d.isDirectory()) {
+                dl[j] = new Directory(d);
+            }
+        }
+        // load indexes of image sizes and types
+        if (fileClass == FileClass.IMAGE) {
+            for (Directory d : dl) {
+                if (d != null) {
+                    d.setIndex(ImageIndex.load(d.getDir()));
+                }
+            }
+        }
+        dirs = dl;
+    }
+
+    /**
+     * Returns the modification times of the directory in all base 
+     * directories (0 if missing).
+     * 
+     * @return
+     */
+    protected long[] getDirMTimes() {
+        long[] mtimes = new long[baseDirNames.length];
+        mtimes[0] = dir.lastModified();
+        for (int j = 1; j < baseDirNames.length; j++) {
+            mtimes[j] = new File(baseDirNames[j], dirName).lastModified();
+        }
+        return mtimes;
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.DocuDirectory#getSnapshot()
+     */
+    @Override
+    public DocuDirSnapshot getSnapshot() {
+        List<DocuDirent> fl = files;
+        Directory[] dl = dirs;
+        if (fileClass != FileClass.IMAGE || !isRead() || fl == null || dl == null) {
+            return null;
+        }
+        List<DocuDirSnapshot.FileEntry> entries = new ArrayList<DocuDirSnapshot.FileEntry>(fl.size());
+        for (DocuDirent f : fl) {
+            ImageSet is = (ImageSet) f;
+            int nl = is.size();
+            DocuDirSnapshot.FileEntry fe = new DocuDirSnapshot.FileEntry(nl);
+            for (int l = 0; l < nl; ++l) {
+                ImageFile imgf = (ImageFile) is.get(l);
+                // find the base directory of the file
+                Directory fd = imgf.getDirectory();
+                int bi = 0;
+                while (bi < dl.length && dl[bi] != fd) {
+                    ++bi;
+                }
+                if (bi == dl.length) {
+                    // not in our directories
+                    return null;
+                }
+                fe.baseDirs[l] = bi;
+                fe.names[l] = imgf.getName();
+                if (imgf.isChecked()) {
+                    fe.widths[l] = imgf.getSize().getWidth();
+                    fe.heights[l] = imgf.getSize().getHeight();
+                    fe.mimetypes[l] = imgf.getMimetype();
+                } else {
+                    fe.widths[l] = -1;
+                    fe.heights[l] = -1;
+                }
+            }
+            entries.add(fe);
+        }
+        // use the modification times from the last read
+        long[] mtimes = getDirMTimes();
+        mtimes[0] = dirMTime;
+        return new DocuDirSnapshot(dirName, mtimes, entries);
+    }
+
+    /**
+     * Returns if the snapshot can be used for this directory: the
+     * modification times in all base directories are unchanged and all 
+     * directories of the snapshot exist. Sets up the scaled directories.
+     * 
+     * @param snapshot
+     * @return
+     */
+    protected boolean isSnapshotUsable(DocuDirSnapshot snapshot) {
+        if (!isValid || fileClass != FileClass.IMAGE || !Arrays.equals(snapshot.dirMTimes, getDirMTimes())) {
+            return false;
+        }
+        if (dirs == null) {
+            initDirs();
+        }
+        for (DocuDirSnapshot.FileEntry fe : snapshot.files) {
+            for (int bi : fe.baseDirs) {
+                if (dirs[bi] == null) {
+                    // scaled directory is gone
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.DocuDirectory#restore(digilib.io.DocuDirSnapshot)
+     */
+    @Override
+    public synchronized boolean restore(DocuDirSnapshot snapshot) {
+        if (!isSnapshotUsable(snapshot)) {
+            return false;
+        }
+        ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(snapshot.files.size());
+        for (DocuDirSnapshot.FileEntry fe : snapshot.files) {
+            ImageFileSet fs = new ImageFileSet(new File(dir, fe.names[0]), this);
+            for (int l = 0; l < fe.names.length; ++l) {
+                ImageFile imgf = new ImageFile(fe.names[l], fs, dirs[fe.baseDirs[l]]);
+                if (fe.widths[l] >= 0 && fe.mimetypes[l] != null) {
+                    imgf.setSize(new ImageSize(fe.widths[l], fe.heights[l]));
+                    imgf.setMimetype(fe.mimetypes[l]);
+                }
+                fs.add(imgf);
+            }
+            fs.setParent(this);
+            dl.add(fs);
+        }
+        files = dl;
+        dirMTime = snapshot.dirMTimes[0];
+        readMeta();
+        logger.debug("restored directory " + this + " from snapshot");
+        return true;
+    }
+
 }
@@ -0,0 +1,502 @@
+package digilib.io;
+
+/*
+ * #%L
+ * CompactDocuDirectory.java -- DocuDirectory with a compact memory layout.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import digilib.io.FileOps.FileClass;
+import digilib.util.ImageSize;
+
+/**
+ * DocuDirectory implementation for very large image directories.
+ *
+ * Like BaseDirDocuDirectory but the file names of all resolutions are kept
+ * in one packed char array and the sizes and mime-types in primitive
+ * arrays. The ImageFileSets for a file are only created when the file is
+ * requested. Sizes and mime-types found by identifying the ImageFiles are
+ * written back to the arrays. The most recently requested ImageFileSets and
+ * the ImageFileSets with file metadata from index.meta are kept.
+ *
+ * Use by setting docudirectory-class to digilib.io.CompactDocuDirectory.
+ *
+ * @author casties
+ *
+ */
+public class CompactDocuDirectory extends BaseDirDocuDirectory {
+
+    /** number of ImageFileSets to keep per directory */
+    protected static final int MAX_VIEWS = 32;
+
+    /** mime-types by index */
+    protected static List<String> mimetypes = new ArrayList<String>();
+
+    /**
+     * Packed contents of the directory. Replaced as a whole when the
+     * directory is reread.
+     */
+    protected static class Packed {
+        /** number of files */
+        int numFiles;
+        /** first level of each file (numFiles+1 entries) */
+        int[] fileLevels;
+        /** index of the base directory of each level */
+        byte[] levelDirs;
+        /** start of the file name of each level in chars (numLevels+1 entries) */
+        int[] nameStarts;
+        /** characters of all file names */
+        char[] chars;
+        /** width of each level (-1 if unknown) */
+        int[] widths;
+        /** height of each level */
+        int[] heights;
+        /** mime-type index of each level (-1 if unknown) */
+        byte[] mimes;
+        /** recently requested ImageFileSets by file index */
+        Map<Integer, ImageFileSet> views;
+        /** ImageFileSets with file metadata by file index (not evicted) */
+        Map<Integer, ImageFileSet> kept = new HashMap<Integer, ImageFileSet>();
+        /** don't evict views while reading metadata */
+        boolean keepAll = false;
+
+        int level;
+        int charPos;
+
+        Packed(int numFiles, int numLevels, int numChars) {
+            this.numFiles = numFiles;
+            fileLevels = new int[numFiles + 1];
+            levelDirs = new byte[numLevels];
+            nameStarts = new int[numLevels + 1];
+            chars = new char[numChars];
+            widths = new int[numLevels];
+            heights = new int[numLevels];
+            mimes = new byte[numLevels];
+            views = new LinkedHashMap<Integer, ImageFileSet>(MAX_VIEWS * 2, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ImageFileSet> eldest) {
+                    return size() > MAX_VIEWS && !keepAll;
+                }
+            };
+        }
+
+        /**
+         * Adds a level of the file with the index fi.
+         */
+        void addLevel(int fi, int baseDir, String name, int width, int height, String mimetype) {
+            if (fileLevels[fi + 1] == 0) {
+                // first level of this file
+                fileLevels[fi] = level;
+            }
+            levelDirs[level] = (byte) baseDir;
+            nameStarts[level] = charPos;
+            name.getChars(0, name.length(), chars, charPos);
+            charPos += name.length();
+            widths[level] = width;
+            heights[level] = height;
+            mimes[level] = mimeIndex(mimetype);
+            ++level;
+            nameStarts[level] = charPos;
+            fileLevels[fi + 1] = level;
+        }
+
+        String getName(int l) {
+            return new String(chars, nameStarts[l], nameStarts[l + 1] - nameStarts[l]);
+        }
+
+        /**
+         * Compares the name of the file with the index fi to fn.
+         */
+        int compareName(int fi, String fn) {
+            int l = fileLevels[fi];
+            int s = nameStarts[l];
+            int len = nameStarts[l + 1] - s;
+            int n = Math.min(len, fn.length());
+            for (int i = 0; i < n; ++i) {
+                int c = chars[s + i] - fn.charAt(i);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return len - fn.length();
+        }
+    }
+
+    /**
+     * ImageFile that writes its size and mime-type back to the packed
+     * arrays.
+     * 
+     * Size and mime-type in the packed arrays are read and written while
+     * holding the lock of the Packed object of the directory. (The lock of
+     * the directory itself is held by readDir() while it calls get().)
+     */
+    protected static class CompactImageFile extends ImageFile {
+        protected Packed packed;
+        protected int level;
+
+        public CompactImageFile(File f, ImageSet parent, Directory dir, Packed packed, int level) {
+            super(f, parent, dir);
+            this.packed = packed;
+            this.level = level;
+        }
+
+        @Override
+        public void setSize(ImageSize imageSize) {
+            super.setSize(imageSize);
+            if (imageSize != null) {
+                synchronized (packed) {
+                    packed.heights[level] = imageSize.getHeight();
+                    packed.widths[level] = imageSize.getWidth();
+                }
+            }
+        }
+
+        @Override
+        public void setMimetype(String filetype) {
+            super.setMimetype(filetype);
+            byte mi = mimeIndex(filetype);
+            synchronized (packed) {
+                packed.mimes[level] = mi;
+            }
+        }
+    }
+
+    /** the packed contents (null if not read or not images) */
+    protected volatile Packed packed = null;
+
+    /**
+     * Returns the index of the mime-type (-1 for null or if there are too
+     * many).
+     *
+     * @param mimetype
+     * @return
+     */
+    protected static byte mimeIndex(String mimetype) {
+        if (mimetype == null) {
+            return -1;
+        }
+        synchronized (mimetypes) {
+            int i = mimetypes.indexOf(mimetype);
+            if (i < 0) {
+                if (mimetypes.size() >= Byte.MAX_VALUE) {
+                    return -1;
+                }
+                i = mimetypes.size();
+                mimetypes.add(mimetype);
+            }
+            return (byte) i;
+        }
+    }
+
+    /**
+     * Returns the mime-type with the index (null for -1).
+     *
+     * @param idx
+     * @return
+     */
+    protected static String mimeType(byte idx) {
+        if (idx < 0) {
+            return null;
+        }
+        synchronized (mimetypes) {
+            return mimetypes.get(idx);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#buildFiles(java.util.List)
+     */
+    @Override
+    protected void buildFiles(List<File> fileList) {
+        if (fileClass != FileClass.IMAGE) {
+            packed = null;
+            super.buildFiles(fileList);
+            return;
+        }
+        NameEntry[] mainNames = getSortedNames(fileList);
+        NameEntry[][] scaledNames = getScaledNames();
+        int[] pos = new int[dirs.length];
+        int nf = mainNames.length;
+        NameEntry[][] matches = new NameEntry[nf][];
+        int numLevels = 0;
+        int numChars = 0;
+        for (int i = 0; i < nf; ++i) {
+            NameEntry[] levels = matchScaledNames(mainNames[i], scaledNames, pos);
+            matches[i] = levels;
+            for (NameEntry ne : levels) {
+                if (ne != null) {
+                    ++numLevels;
+                    numChars += ne.name.length();
+                }
+            }
+        }
+        // sort by file name
+        Arrays.sort(matches, new Comparator<NameEntry[]>() {
+            @Override
+            public int compare(NameEntry[] m1, NameEntry[] m2) {
+                return m1[0].name.compareTo(m2[0].name);
+            }
+        });
+        Packed pk = new Packed(nf, numLevels, numChars);
+        for (int i = 0; i < nf; ++i) {
+            NameEntry[] levels = matches[i];
+            for (int j = 0; j < levels.length; ++j) {
+                if (levels[j] != null) {
+                    pk.addLevel(i, j, levels[j].name, -1, -1, null);
+                }
+            }
+        }
+        packed = pk;
+        files = Collections.emptyList();
+    }
+
+    /**
+     * Creates the ImageFileSet for the file with the index.
+     *
+     * @param pk
+     * @param fi
+     * @return
+     */
+    protected ImageFileSet createFileSet(Packed pk, int fi) {
+        int l0 = pk.fileLevels[fi];
+        int l1 = pk.fileLevels[fi + 1];
+        File mainFile = new File(dir, pk.getName(l0));
+        ImageFileSet fs = new ImageFileSet(mainFile, this);
+        for (int l = l0; l < l1; ++l) {
+            Directory d = dirs[pk.levelDirs[l]];
+            File f = (l == l0) ? mainFile : new File(d.getDir(), pk.getName(l));
+            ImageFile imgf = new CompactImageFile(f, fs, d, pk, l);
+            int width;
+            int height;
+            byte mi;
+            synchronized (pk) {
+                width = pk.widths[l];
+                height = pk.heights[l];
+                mi = pk.mimes[l];
+            }
+            if (width >= 0 && mi >= 0) {
+                imgf.setSize(new ImageSize(width, height));
+                imgf.setMimetype(mimeType(mi));
+            }
+            fs.add(imgf);
+        }
+        return fs;
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.DocuDirectory#size()
+     */
+    @Override
+    public int size() {
+        Packed pk = packed;
+        return (pk != null) ? pk.numFiles : super.size();
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.DocuDirectory#get(int)
+     */
+    @Override
+    public DocuDirent get(int index) {
+        Packed pk = packed;
+        if (pk == null) {
+            return super.get(index);
+        }
+        if (index < 0 || index >= pk.numFiles) {
+            return null;
+        }
+        synchronized (pk.views) {
+            ImageFileSet fs = pk.kept.get(index);
+            if (fs == null) {
+                fs = pk.views.get(index);
+            }
+            if (fs == null) {
+                fs = createFileSet(pk, index);
+                pk.views.put(index, fs);
+            }
+            return fs;
+        }
+    }
+
+    /**
+     * Reads the directory metadata. The ImageFileSets that got file
+     * metadata are kept.
+     * 
+     * The DirMeta looks up only the files that have metadata if there are
+     * fewer metadata entries than files.
+     */
+    @Override
+    public void readMeta() {
+        Packed pk = packed;
+        if (pk == null) {
+            super.readMeta();
+            return;
+        }
+        synchronized (pk.views) {
+            pk.keepAll = true;
+        }
+        try {
+            super.readMeta();
+        } finally {
+            synchronized (pk.views) {
+                pk.keepAll = false;
+                int n = pk.views.size();
+                for (Iterator<Map.Entry<Integer, ImageFileSet>> it = pk.views.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Integer, ImageFileSet> e = it.next();
+                    if (e.getValue().getMeta().getFileMeta() != null) {
+                        pk.kept.put(e.getKey(), e.getValue());
+                        it.remove();
+                        --n;
+                    } else if (n > MAX_VIEWS) {
+                        // eldest first
+                        it.remove();
+                        --n;
+                    }
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.DocuDirectory#indexOf(java.lang.String)
+     */
+    @Override
+    public int indexOf(String fn) {
+        if (!isRead()) {
+            // read directory now
+            if (!readDir()) {
+                return -1;
+            }
+        }
+        Packed pk = packed;
+        if (pk == null) {
+            return super.indexOf(fn);
+        }
+        // binary search for exact match
+        int lo = 0;
+        int hi = pk.numFiles - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = pk.compareName(mid, fn);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        // try closest matches without extension
+        int idx = lo;
+        if (idx < pk.numFiles && isBasenameAt(pk, idx, fn)) {
+            return idx;
+        } else if (idx > 0 && isBasenameAt(pk, idx - 1, fn)) {
+            return idx - 1;
+        } else if (idx + 1 < pk.numFiles && isBasenameAt(pk, idx + 1, fn)) {
+            return idx + 1;
+        }
+        return -1;
+    }
+
+    private boolean isBasenameAt(Packed pk, int fi, String fn) {
+        String dfn = FileOps.basename(pk.getName(pk.fileLevels[fi]));
+        return (dfn.equals(fn) || dfn.equals(FileOps.basename(fn)));
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#getSnapshot()
+     */
+    @Override
+    public DocuDirSnapshot getSnapshot() {
+        Packed pk = packed;
+        if (pk == null || !isRead()) {
+            return super.getSnapshot();
+        }
+        List<DocuDirSnapshot.FileEntry> entries = new ArrayList<DocuDirSnapshot.FileEntry>(pk.numFiles);
+        for (int fi = 0; fi < pk.numFiles; ++fi) {
+            int l0 = pk.fileLevels[fi];
+            int nl = pk.fileLevels[fi + 1] - l0;
+            DocuDirSnapshot.FileEntry fe = new DocuDirSnapshot.FileEntry(nl);
+            for (int i = 0; i < nl; ++i) {
+                int l = l0 + i;
+                fe.baseDirs[i] = pk.levelDirs[l];
+                fe.names[i] = pk.getName(l);
+                byte mi;
+                synchronized (pk) {
+                    fe.widths[i] = pk.widths[l];
+                    fe.heights[i] = pk.heights[l];
+                    mi = pk.mimes[l];
+                }
+                fe.mimetypes[i] = mimeType(mi);
+            }
+            entries.add(fe);
+        }
+        long[] mtimes = getDirMTimes();
+        mtimes[0] = dirMTime;
+        return new DocuDirSnapshot(dirName, mtimes, entries);
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#restore(digilib.io.DocuDirSnapshot)
+     */
+    @Override
+    public synchronized boolean restore(DocuDirSnapshot snapshot) {
+        if (!isSnapshotUsable(snapshot)) {
+            return false;
+        }
+        int nf = snapshot.files.size();
+        int numLevels = 0;
+        int numChars = 0;
+        for (DocuDirSnapshot.FileEntry fe : snapshot.files) {
+            for (String n : fe.names) {
+                ++numLevels;
+                numChars += n.length();
+            }
+        }
+        Packed pk = new Packed(nf, numLevels, numChars);
+        for (int fi = 0; fi < nf; ++fi) {
+            DocuDirSnapshot.FileEntry fe = snapshot.files.get(fi);
+            for (int i = 0; i < fe.names.length; ++i) {
+                pk.addLevel(fi, fe.baseDirs[i], fe.names[i], fe.widths[i], fe.heights[i], fe.mimetypes[i]);
+            }
+        }
+        packed = pk;
+        files = Collections.emptyList();
+        dirMTime = snapshot.dirMTimes[0];
+        readMeta();
+        logger.debug("restored directory " + this + " from snapshot");
+        return true;
+    }
+
+}
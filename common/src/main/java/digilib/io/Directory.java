@@ -29,7 +29,14 @@ package digilib.io;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -47,6 +54,8 @@ public class Directory {
 	protected Directory parent = null;
 	/** list of filenames in the directory */
 	protected String[] list = null;
+	/** index of image sizes and types (may be null) */
+	protected ImageIndex index = null;
 
 	/** Default constructor.
 	 * 
@@ -90,9 +99,16 @@ public class Directory {
 	public boolean readDir() {
 		if (dir != null) {
 			//logger.debug("reading dir: "+dir.getPath());
-			list = dir.list();
-			if (list != null) {
-				Arrays.sort(list);
+			List<String> names = new ArrayList<String>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath())) {
+				for (Path p : ds) {
+					names.add(p.getFileName().toString());
+				}
+				String[] nl = names.toArray(new String[names.size()]);
+				Arrays.sort(nl);
+				list = nl;
+			} catch (IOException | DirectoryIteratorException e) {
+				list = null;
 			}
 			//logger.debug("  done");
 		}
@@ -145,4 +161,18 @@ public class Directory {
 	public void clearFilenames() {
 		this.list = null;
 	}
+
+	/**
+	 * @return the index of image sizes and types (may be null)
+	 */
+	public ImageIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @param index the index of image sizes and types
+	 */
+	public void setIndex(ImageIndex index) {
+		this.index = index;
+	}
 }
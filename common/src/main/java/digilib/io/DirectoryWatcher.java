@@ -0,0 +1,310 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryWatcher -- reports changes of cached directories.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the directories in a DocuDirCache for changes on the file system
+ * and marks changed directories so they are reread on the next refresh.
+ * Watched directories do not check the file system on refresh.
+ *
+ * In mode "watch" the directories of every base directory are registered
+ * with a WatchService. In mode "poll" (for network file systems) a thread
+ * compares the modification times of all directories every pollInterval ms.
+ *
+ * @author casties
+ *
+ */
+public class DirectoryWatcher implements Runnable {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DirectoryWatcher.class);
+
+    /** the base directories */
+    protected String[] baseDirNames;
+
+    /** the WatchService (null when polling) */
+    protected WatchService watchService = null;
+
+    /** polling interval (ms) */
+    protected long pollInterval;
+
+    /** the directories by WatchKey */
+    protected ConcurrentMap<WatchKey, DocuDirectory> keyDirs = new ConcurrentHashMap<WatchKey, DocuDirectory>();
+
+    /** the WatchKeys by directory */
+    protected ConcurrentMap<DocuDirectory, List<WatchKey>> dirKeys = new ConcurrentHashMap<DocuDirectory, List<WatchKey>>();
+
+    /** the polled directories */
+    protected ConcurrentMap<DocuDirectory, Boolean> polledDirs = new ConcurrentHashMap<DocuDirectory, Boolean>();
+
+    /** the watcher thread */
+    protected Thread thread;
+
+    /** number of changes reported */
+    protected AtomicInteger changes = new AtomicInteger(0);
+
+    /**
+     * Creates and starts a DirectoryWatcher.
+     *
+     * Returns null if mode is not "watch" or "poll" or the WatchService is
+     * not available.
+     *
+     * @param mode
+     *            "watch" or "poll"
+     * @param pollInterval
+     *            polling interval (ms)
+     * @param baseDirNames
+     *            base directories (may be null)
+     * @return
+     */
+    public static DirectoryWatcher getInstance(String mode, long pollInterval, String[] baseDirNames) {
+        DirectoryWatcher watcher = null;
+        if (mode.equals("watch")) {
+            try {
+                WatchService ws = FileSystems.getDefault().newWatchService();
+                watcher = new DirectoryWatcher(ws, pollInterval, baseDirNames);
+            } catch (IOException e) {
+                logger.error("Unable to create WatchService: " + e);
+                return null;
+            }
+        } else if (mode.equals("poll")) {
+            watcher = new DirectoryWatcher(null, pollInterval, baseDirNames);
+        } else {
+            return null;
+        }
+        watcher.thread = new Thread(watcher, "digilib-dirwatcher");
+        watcher.thread.setDaemon(true);
+        watcher.thread.start();
+        logger.info("DirectoryWatcher started in mode " + mode);
+        return watcher;
+    }
+
+    protected DirectoryWatcher(WatchService watchService, long pollInterval, String[] baseDirNames) {
+        this.watchService = watchService;
+        this.pollInterval = Math.max(pollInterval, 100);
+        this.baseDirNames = baseDirNames;
+    }
+
+    /**
+     * Starts watching the directory.
+     *
+     * A directory that can not be registered with the WatchService is not
+     * marked as watched and keeps checking its modification time on refresh.
+     *
+     * @param dd
+     */
+    public void register(DocuDirectory dd) {
+        if (watchService != null) {
+            // the main directory has to be watched
+            WatchKey mainKey = register(dd, dd.getDir().toPath());
+            if (mainKey == null) {
+                // keep checking the modification time
+                return;
+            }
+            List<WatchKey> keys = new ArrayList<WatchKey>(1);
+            keys.add(mainKey);
+            if (baseDirNames != null) {
+                for (String bd : baseDirNames) {
+                    File d = new File(bd, dd.getDirName());
+                    if (d.isDirectory() && !d.equals(dd.getDir())) {
+                        WatchKey key = register(dd, d.toPath());
+                        if (key != null) {
+                            keys.add(key);
+                        }
+                    }
+                }
+            }
+            dirKeys.put(dd, keys);
+        } else {
+            polledDirs.put(dd, Boolean.TRUE);
+        }
+        dd.setWatched(true);
+        if (dd.isRead() && dd.getDir().lastModified() > dd.getDirMTime()) {
+            // changed before it was registered
+            dd.setChanged();
+        }
+    }
+
+    /**
+     * Registers the path of the directory with the WatchService.
+     *
+     * Returns null if the path could not be registered (e.g. because the
+     * limit of watches of the system has been reached).
+     *
+     * @param dd
+     * @param path
+     * @return
+     */
+    protected WatchKey register(DocuDirectory dd, Path path) {
+        try {
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keyDirs.put(key, dd);
+            return key;
+        } catch (IOException e) {
+            logger.warn("Unable to watch directory " + path + ": " + e);
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        }
+        return null;
+    }
+
+    /**
+     * Stops watching the directory.
+     *
+     * @param dd
+     */
+    public void unregister(DocuDirectory dd) {
+        dd.setWatched(false);
+        if (watchService != null) {
+            List<WatchKey> keys = dirKeys.remove(dd);
+            if (keys != null) {
+                for (WatchKey key : keys) {
+                    key.cancel();
+                    keyDirs.remove(key);
+                }
+            }
+        } else {
+            polledDirs.remove(dd);
+        }
+    }
+
+    /**
+     * Watches or polls until shutdown.
+     */
+    @Override
+    public void run() {
+        try {
+            if (watchService != null) {
+                watch();
+            } else {
+                poll();
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        }
+        logger.debug("DirectoryWatcher stopped");
+    }
+
+    /**
+     * Takes events from the WatchService and marks the directories.
+     *
+     * @throws InterruptedException
+     */
+    protected void watch() throws InterruptedException {
+        while (true) {
+            WatchKey key = watchService.take();
+            // we don't care what has changed
+            key.pollEvents();
+            DocuDirectory dd = keyDirs.get(key);
+            if (dd != null) {
+                dd.setChanged();
+                changes.incrementAndGet();
+            }
+            if (!key.reset()) {
+                // directory is gone
+                keyDirs.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Compares the modification times of all directories every
+     * pollInterval and marks the changed ones.
+     *
+     * @throws InterruptedException
+     */
+    protected void poll() throws InterruptedException {
+        while (true) {
+            Thread.sleep(pollInterval);
+            for (DocuDirectory dd : polledDirs.keySet()) {
+                if (dd.isRead() && dd.getDir().lastModified() != dd.getDirMTime()) {
+                    dd.setChanged();
+                    changes.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the watcher thread.
+     */
+    public void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        for (DocuDirectory dd : dirKeys.keySet()) {
+            dd.setWatched(false);
+        }
+        for (DocuDirectory dd : polledDirs.keySet()) {
+            dd.setWatched(false);
+        }
+        keyDirs.clear();
+        dirKeys.clear();
+        polledDirs.clear();
+    }
+
+    /**
+     * @return the number of changes reported
+     */
+    public int getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * @return the number of watched directories
+     */
+    public int getWatchedDirs() {
+        return (watchService != null) ? dirKeys.size() : polledDirs.size();
+    }
+
+}
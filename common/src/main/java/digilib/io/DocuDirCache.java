@@ -27,8 +27,22 @@ package digilib.io;
  * Created on 03.03.2003
  */
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -37,6 +51,13 @@ import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
 
 /**
+ * Cache of DocuDirectories by directory name.
+ * 
+ * If the number of directories or files is limited the least recently 
+ * used directories are evicted when the cache is full. Directories that are
+ * parents of cached directories or have alias names are not evicted so the
+ * parent links of all cached directories point into the cache.
+ * 
  * @author casties
  */
 public class DocuDirCache {
@@ -50,7 +71,7 @@ public class DocuDirCache {
 	/** allowed file class (image/text) */
 	protected FileClass fileClass = null;
 
-	/** number of files in the whole cache (approximate) */
+	/** number of files in the whole cache (as counted when the directories were last used) */
 	protected AtomicInteger numFiles = new AtomicInteger(0);
 
 	/** number of cache hits */
@@ -59,15 +80,108 @@ public class DocuDirCache {
 	/** number of cache misses */
 	protected AtomicInteger misses = new AtomicInteger(0);
 
+	/** number of evicted directories */
+	protected AtomicInteger evictions = new AtomicInteger(0);
+
+	/** watcher for changes of the cached directories (may be null) */
+	protected DirectoryWatcher watcher = null;
+
+	/** maximum number of directories (0 means no limit) */
+	protected int maxDirs = 0;
+
+	/** maximum number of files (0 means no limit) */
+	protected int maxFiles = 0;
+
+	/**
+	 * Entry in the negative cache.
+	 */
+	protected static class NegativeEntry {
+		/** expiry time (ms) */
+		long expires;
+		/** the directory of the missing file (may be null) */
+		DocuDirectory dir;
+		/** modification time of the directory */
+		long dirMTime;
+		/** the nearest existing ancestor of a missing directory (may be null) */
+		File ancestor;
+		/** modification time of the ancestor */
+		long ancestorMTime;
+	}
+
+	/** negative cache of paths that do not exist (null means off) */
+	protected ConcurrentMap<String, NegativeEntry> negatives = null;
+
+	/** maximum number of entries in the negative cache */
+	protected int negativeSize = 0;
+
+	/** time to live of negative cache entries (ms) */
+	protected long negativeTtl = 0;
+
+	/** number of hits of the negative cache */
+	protected AtomicInteger negativeHits = new AtomicInteger(0);
+
+	/** file for snapshots of the cached directories (null means no snapshots) */
+	protected File snapshotFile = null;
+
+	/** snapshots read from the file that have not been used (null if not read yet) */
+	protected Map<String, DocuDirSnapshot> snapshots = null;
+
+	/** number of snapshot writes after which unused snapshots are dropped */
+	protected static final int MAX_UNUSED_SNAPSHOT_WRITES = 3;
+
+	/** number of snapshot writes since the snapshot file was read */
+	protected int snapshotWrites = 0;
+
+	/** executor writing the snapshots */
+	protected ScheduledExecutorService snapshotExecutor = null;
+
+	/** number of directories restored from snapshots */
+	protected AtomicInteger restored = new AtomicInteger(0);
+
 	/**
 	 * Constructor with digilib configuration and file class.
 	 * 
+	 * Starts a DirectoryWatcher if dir-cache-watch is "watch" or "poll".
+	 * 
      * @param fc
      * @param dlConfig
 	 */
 	public DocuDirCache(FileClass fc,
 			DigilibConfiguration dlConfig) {
 		this.fileClass = fc;
+		maxDirs = dlConfig.getAsInt("dir-cache-max-dirs");
+		maxFiles = dlConfig.getAsInt("dir-cache-max-files");
+		negativeTtl = dlConfig.getAsInt("dir-cache-negative-ttl") * 1000L;
+		negativeSize = dlConfig.getAsInt("dir-cache-negative-size");
+		if (negativeTtl > 0 && negativeSize > 0) {
+			negatives = new ConcurrentHashMap<String, NegativeEntry>();
+		}
+		String sfn = dlConfig.getAsString("dir-cache-snapshot-file");
+		if (sfn.length() > 0 && fc == FileClass.IMAGE) {
+			snapshotFile = new File(sfn);
+			long si = dlConfig.getAsInt("dir-cache-snapshot-interval");
+			if (si > 0) {
+				snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "digilib-dirsnapshot");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						writeSnapshot();
+					}
+				}, si, si, TimeUnit.SECONDS);
+			}
+		}
+		String wm = dlConfig.getAsString("dir-cache-watch");
+		if (wm.length() > 0 && !wm.equals("none")) {
+			watcher = DirectoryWatcher.getInstance(wm, dlConfig.getAsInt("dir-cache-poll-interval") * 1000L,
+					(String[]) dlConfig.getValue("basedir-list"));
+		}
 	}
 
 	/**
@@ -103,7 +217,13 @@ public class DocuDirCache {
 			logger.warn("Duplicate key in DocuDirCache.put -- ignoring!");
 			return olddir;
 		}
-		numFiles.addAndGet(newdir.size());
+		synchronized (this) {
+			newdir.countedFiles = newdir.size();
+			numFiles.addAndGet(newdir.countedFiles);
+		}
+		if (watcher != null) {
+			watcher.register(newdir);
+		}
 		return newdir;
 	}
 
@@ -111,11 +231,27 @@ public class DocuDirCache {
 	 * Add a directory to the cache and check its parents.
 	 * Always returns the correct Object from the cache, 
 	 * either newDir or the cached one.
+	 * 
+	 * Evicts directories if the cache is full.
 	 *
 	 * @param newDir
 	 * @return dir
 	 */
-	public DocuDirectory putDir(DocuDirectory newDir) {
+	public synchronized DocuDirectory putDir(DocuDirectory newDir) {
+		DocuDirectory dd = putWithParents(newDir);
+		if (isFull()) {
+			evict();
+		}
+		return dd;
+	}
+
+	/**
+	 * Add a directory and its parents to the cache.
+	 * 
+	 * @param newDir
+	 * @return dir
+	 */
+	protected DocuDirectory putWithParents(DocuDirectory newDir) {
 		DocuDirectory dd = put(newDir);
 		if (dd.getParent() == null) {
 			// no parent link yet
@@ -126,7 +262,7 @@ public class DocuDirCache {
 				if (pd == null) {
 					// the parent is unknown
 					pd = DocuDirectoryFactory.getDocuDirectoryInstance(parent, fileClass);
-					pd = putDir(pd);
+					pd = putWithParents(pd);
 				}
 				newDir.setParent(pd);
 			}
@@ -134,6 +270,266 @@ public class DocuDirCache {
 		return dd;
 	}
 
+	/**
+	 * Fills the new directory from its snapshot if there is a valid one 
+	 * and refreshes it.
+	 * 
+	 * The snapshot file is read on first use.
+	 * 
+	 * @param dd
+	 */
+	protected void restoreOrRefresh(DocuDirectory dd) {
+		if (snapshotFile != null) {
+			DocuDirSnapshot s;
+			synchronized (this) {
+				if (snapshots == null) {
+					snapshots = DocuDirSnapshot.readAll(snapshotFile);
+				}
+				s = snapshots.remove(dd.getDirName());
+			}
+			if (s != null && dd.restore(s)) {
+				restored.incrementAndGet();
+			}
+		}
+		dd.refresh();
+	}
+
+	/**
+	 * Writes snapshots of all cached directories (and the unused snapshots)
+	 * to the snapshot file.
+	 * 
+	 * Snapshots that have not been used for MAX_UNUSED_SNAPSHOT_WRITES 
+	 * writes are dropped so entries of deleted or renamed directories do 
+	 * not accumulate.
+	 */
+	public void writeSnapshot() {
+		if (snapshotFile == null) {
+			return;
+		}
+		Map<String, DocuDirSnapshot> sm = new LinkedHashMap<String, DocuDirSnapshot>();
+		synchronized (this) {
+			if (snapshots != null) {
+				if (++snapshotWrites > MAX_UNUSED_SNAPSHOT_WRITES) {
+					if (!snapshots.isEmpty()) {
+						logger.debug("Dropping " + snapshots.size() + " unused directory snapshots");
+						snapshots.clear();
+					}
+				} else {
+					sm.putAll(snapshots);
+				}
+			}
+		}
+		for (Map.Entry<String, DocuDirectory> e : map.entrySet()) {
+			DocuDirectory dd = e.getValue();
+			if (!e.getKey().equals(dd.getDirName())) {
+				// aliased
+				continue;
+			}
+			DocuDirSnapshot s = dd.getSnapshot();
+			if (s != null) {
+				sm.put(s.dirName, s);
+			}
+		}
+		DocuDirSnapshot.writeAll(snapshotFile, sm.values());
+	}
+
+	/**
+	 * Returns if the path is in the negative cache.
+	 * 
+	 * Entries are valid until they expire or the directory of the missing
+	 * file (or the nearest existing ancestor of a missing directory) has 
+	 * changed.
+	 * 
+	 * @param fn
+	 * @return
+	 */
+	protected boolean isNegative(String fn) {
+		if (negatives == null) {
+			return false;
+		}
+		NegativeEntry ne = negatives.get(fn);
+		if (ne == null) {
+			return false;
+		}
+		if (ne.dir != null) {
+			// check the directory like for a cache hit
+			ne.dir.refresh();
+		}
+		if (ne.expires < System.currentTimeMillis()
+				|| (ne.dir != null && ne.dir.getDirMTime() != ne.dirMTime)
+				|| (ne.ancestor != null && ne.ancestor.lastModified() != ne.ancestorMTime)) {
+			negatives.remove(fn, ne);
+			return false;
+		}
+		negativeHits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Adds the missing file in the existing directory to the negative cache.
+	 * 
+	 * @param fn
+	 * @param dir
+	 *            the (existing) directory of the missing file
+	 */
+	protected void putNegative(String fn, DocuDirectory dir) {
+		if (negatives == null) {
+			return;
+		}
+		NegativeEntry ne = new NegativeEntry();
+		ne.expires = System.currentTimeMillis() + negativeTtl;
+		ne.dir = dir;
+		ne.dirMTime = dir.getDirMTime();
+		addNegative(fn, ne);
+	}
+
+	/**
+	 * Adds the path of the missing directory to the negative cache.
+	 * 
+	 * Remembers the nearest existing ancestor of the directory on disk 
+	 * because creating the missing directory (or one of its parents) changes 
+	 * its modification time. 
+	 * 
+	 * @param fn
+	 * @param missing
+	 *            the missing directory on disk
+	 */
+	protected void putNegative(String fn, File missing) {
+		if (negatives == null || missing == null) {
+			return;
+		}
+		File ancestor = missing.getParentFile();
+		while (ancestor != null && !ancestor.isDirectory()) {
+			ancestor = ancestor.getParentFile();
+		}
+		if (ancestor == null) {
+			return;
+		}
+		NegativeEntry ne = new NegativeEntry();
+		ne.expires = System.currentTimeMillis() + negativeTtl;
+		ne.ancestor = ancestor;
+		ne.ancestorMTime = ancestor.lastModified();
+		addNegative(fn, ne);
+	}
+
+	/**
+	 * Adds the entry to the negative cache. Removes expired (or, if that 
+	 * is not enough, arbitrary) entries when the cache is full.
+	 * 
+	 * @param fn
+	 * @param ne
+	 */
+	protected void addNegative(String fn, NegativeEntry ne) {
+		if (negatives.size() >= negativeSize) {
+			long now = System.currentTimeMillis();
+			for (Iterator<NegativeEntry> i = negatives.values().iterator(); i.hasNext();) {
+				if (i.next().expires < now) {
+					i.remove();
+				}
+			}
+			for (Iterator<NegativeEntry> i = negatives.values().iterator(); i.hasNext()
+					&& negatives.size() >= negativeSize;) {
+				i.next();
+				i.remove();
+			}
+		}
+		negatives.put(fn, ne);
+	}
+
+	/**
+	 * Returns if the cache has more directories or files than allowed.
+	 * 
+	 * @return
+	 */
+	protected boolean isFull() {
+		return (maxDirs > 0 && map.size() > maxDirs) || (maxFiles > 0 && numFiles.get() > maxFiles);
+	}
+
+	/**
+	 * Updates the number of files in the cache after the directory has been
+	 * reread with a different number of files.
+	 * 
+	 * @param dd
+	 */
+	protected void updateNumFiles(DocuDirectory dd) {
+		if (dd.size() == dd.countedFiles) {
+			return;
+		}
+		synchronized (this) {
+			if (map.get(dd.getDirName()) != dd) {
+				// not (or no longer) counted
+				return;
+			}
+			int n = dd.size();
+			numFiles.addAndGet(n - dd.countedFiles);
+			dd.countedFiles = n;
+			if (isFull()) {
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used directories until the cache is 10%
+	 * below its limits.
+	 * 
+	 * Directories that are parents of other cached directories or have alias
+	 * names are kept. Evicting a directory can make its parent evictable so
+	 * this is repeated until nothing more can be evicted.
+	 */
+	protected synchronized void evict() {
+		int targetDirs = (maxDirs > 0) ? maxDirs - maxDirs / 10 : Integer.MAX_VALUE;
+		int targetFiles = (maxFiles > 0) ? maxFiles - maxFiles / 10 : Integer.MAX_VALUE;
+		int evicted = 0;
+		boolean removed = true;
+		while (removed && (map.size() > targetDirs || numFiles.get() > targetFiles)) {
+			removed = false;
+			// find directories that must be kept
+			Set<Directory> keep = Collections.newSetFromMap(new IdentityHashMap<Directory, Boolean>());
+			for (Map.Entry<String, DocuDirectory> e : map.entrySet()) {
+				DocuDirectory dd = e.getValue();
+				if (dd.getParent() != null) {
+					keep.add(dd.getParent());
+				}
+				if (!e.getKey().equals(dd.getDirName())) {
+					// aliased
+					keep.add(dd);
+				}
+			}
+			List<DocuDirectory> candidates = new ArrayList<DocuDirectory>();
+			for (DocuDirectory dd : map.values()) {
+				if (!keep.contains(dd)) {
+					candidates.add(dd);
+				}
+			}
+			// oldest first
+			Collections.sort(candidates, new Comparator<DocuDirectory>() {
+				@Override
+				public int compare(DocuDirectory d1, DocuDirectory d2) {
+					long t1 = d1.getAccessTime();
+					long t2 = d2.getAccessTime();
+					return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+				}
+			});
+			for (DocuDirectory dd : candidates) {
+				if (map.size() <= targetDirs && numFiles.get() <= targetFiles) {
+					break;
+				}
+				if (map.remove(dd.getDirName(), dd)) {
+					numFiles.addAndGet(-dd.countedFiles);
+					dd.countedFiles = 0;
+					if (watcher != null) {
+						watcher.unregister(dd);
+					}
+					evicted++;
+					removed = true;
+				}
+			}
+		}
+		evictions.addAndGet(evicted);
+		logger.debug("DocuDirCache evicted " + evicted + " directories, " + map.size() + " left");
+	}
+
     /**
      * Returns the DocuDirent with the pathname <code>fn</code> and the index
      * <code>in</code> of FileClass fc.
@@ -176,6 +572,10 @@ public class DocuDirCache {
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
 		if (dd == null) {
+			if (isNegative(fn)) {
+				// known to be missing
+				return null;
+			}
 			// cache miss
 			misses.incrementAndGet();
 			/*
@@ -184,7 +584,7 @@ public class DocuDirCache {
 			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
 			if (dd.isValid()) {
 			    // add to the cache
-			    dd.refresh();
+			    restoreOrRefresh(dd);
 			    dd = putDir(dd);
 			} else {
 				/*
@@ -201,10 +601,11 @@ public class DocuDirCache {
 					if (dd.isValid()) {
 						// add to the cache
                         // logger.debug(dd + " is valid");
-					    dd.refresh();
+					    restoreOrRefresh(dd);
 						dd = putDir(dd);
 					} else {
 						// invalid path
+						putNegative(fn, dd.getDir());
 						return null;
 					}
 				} else {
@@ -213,12 +614,23 @@ public class DocuDirCache {
 				}
 				// get the file's index
 				n = dd.indexOf(FileOps.filename(fn));
+				if (n < 0) {
+					// the directory may have changed
+					dd.refresh();
+					n = dd.indexOf(FileOps.filename(fn));
+					if (n < 0) {
+						// missing file
+						putNegative(fn, dd);
+						return null;
+					}
+				}
 			}
 		} else {
 			// cache hit
 			hits.incrementAndGet();
 		}
 		dd.refresh();
+		updateNumFiles(dd);
 		if (dd.isValid()) {
 			try {
 				return dd.get(n);
@@ -243,13 +655,17 @@ public class DocuDirCache {
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
 		if (dd == null) {
+			if (isNegative(fn)) {
+				// known to be missing
+				return null;
+			}
 			// cache miss
 			misses.incrementAndGet();
 			// see if it's a directory
 			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
 			if (dd.isValid()) {
 			    // add to the cache
-                dd.refresh();
+                restoreOrRefresh(dd);
 			    dd = putDir(dd);
 			} else {
 				// try the parent directory in the cache
@@ -260,10 +676,11 @@ public class DocuDirCache {
 					dd = DocuDirectoryFactory.getDocuDirectoryInstance(pn, fileClass);
 					if (dd.isValid()) {
 						// add to the cache
-		                dd.refresh();
+		                restoreOrRefresh(dd);
 						dd = putDir(dd);
 					} else {
 						// invalid path
+						putNegative(fn, dd.getDir());
 						return null;
 					}
 				} else {
@@ -276,6 +693,7 @@ public class DocuDirCache {
 			hits.incrementAndGet();
 		}
 		dd.refresh();
+		updateNumFiles(dd);
 		if (dd.isValid()) {
 			return dd;
 		}
@@ -303,6 +721,73 @@ public class DocuDirCache {
 		return misses.get();
 	}
 
+	/**
+	 * @return the number of hits of the negative cache
+	 */
+	public int getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * @return the number of entries in the negative cache
+	 */
+	public int getNegativeSize() {
+		if (negatives == null) {
+			return 0;
+		}
+		return negatives.size();
+	}
+
+	/**
+	 * @return the number of evicted directories
+	 */
+	public int getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the maximum number of directories (0 means no limit)
+	 */
+	public int getMaxDirs() {
+		return maxDirs;
+	}
+
+	/**
+	 * @return the maximum number of files (0 means no limit)
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	/**
+	 * @return the DirectoryWatcher (may be null)
+	 */
+	public DirectoryWatcher getWatcher() {
+		return watcher;
+	}
+
+	/**
+	 * @return the number of directories restored from snapshots
+	 */
+	public int getRestored() {
+		return restored.get();
+	}
+
+	/**
+	 * Stops watching the cached directories and writes the snapshot.
+	 */
+	public void shutdown() {
+		if (watcher != null) {
+			watcher.shutdown();
+			watcher = null;
+		}
+		if (snapshotExecutor != null) {
+			snapshotExecutor.shutdownNow();
+			snapshotExecutor = null;
+		}
+		writeSnapshot();
+	}
+
 	/**
 	 * @return
 	 */
@@ -0,0 +1,221 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirSnapshot -- stored contents of a DocuDirectory.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stored contents of a DocuDirectory: the modification times of the
+ * directory in all base directories and the names, sizes and mime-types of
+ * all files at all resolutions.
+ *
+ * Snapshots of all cached directories are written to one file and used to
+ * fill the directory cache after a restart. A snapshot is only used if the
+ * modification times of the directories are unchanged.
+ *
+ * @author casties
+ *
+ */
+public class DocuDirSnapshot {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DocuDirSnapshot.class);
+
+    /** magic number and version of snapshot files */
+    protected static final int SNAPSHOT_MAGIC = 0x646c6473;
+    protected static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * One file at all resolutions.
+     */
+    public static class FileEntry {
+        /** index of the base directory of each resolution */
+        public int[] baseDirs;
+        /** file name of each resolution */
+        public String[] names;
+        /** width of each resolution (-1 if unknown) */
+        public int[] widths;
+        /** height of each resolution */
+        public int[] heights;
+        /** mime-type of each resolution (null if unknown) */
+        public String[] mimetypes;
+
+        public FileEntry(int levels) {
+            baseDirs = new int[levels];
+            names = new String[levels];
+            widths = new int[levels];
+            heights = new int[levels];
+            mimetypes = new String[levels];
+        }
+    }
+
+    /** the directory name */
+    public String dirName;
+
+    /** modification time of the directory in each base directory (0 if missing) */
+    public long[] dirMTimes;
+
+    /** the files (sorted like the DocuDirectory) */
+    public List<FileEntry> files;
+
+    public DocuDirSnapshot(String dirName, long[] dirMTimes, List<FileEntry> files) {
+        this.dirName = dirName;
+        this.dirMTimes = dirMTimes;
+        this.files = files;
+    }
+
+    /**
+     * Reads all snapshots from the file. Returns an empty map if the file
+     * can not be read.
+     *
+     * @param file
+     * @return
+     */
+    public static Map<String, DocuDirSnapshot> readAll(File file) {
+        Map<String, DocuDirSnapshot> snapshots = new HashMap<String, DocuDirSnapshot>();
+        if (!file.canRead()) {
+            return snapshots;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                logger.warn("Invalid directory snapshot file " + file);
+                return snapshots;
+            }
+            int nd = in.readInt();
+            for (int i = 0; i < nd; ++i) {
+                String dn = in.readUTF();
+                int nb = in.readInt();
+                long[] mtimes = new long[nb];
+                for (int j = 0; j < nb; ++j) {
+                    mtimes[j] = in.readLong();
+                }
+                int nf = in.readInt();
+                List<FileEntry> files = new ArrayList<FileEntry>(nf);
+                for (int k = 0; k < nf; ++k) {
+                    int nl = in.readInt();
+                    FileEntry fe = new FileEntry(nl);
+                    for (int l = 0; l < nl; ++l) {
+                        fe.baseDirs[l] = in.readInt();
+                        fe.names[l] = in.readUTF();
+                        fe.widths[l] = in.readInt();
+                        fe.heights[l] = in.readInt();
+                        String mt = in.readUTF();
+                        fe.mimetypes[l] = (mt.length() > 0) ? mt.intern() : null;
+                    }
+                    files.add(fe);
+                }
+                snapshots.put(dn, new DocuDirSnapshot(dn, mtimes, files));
+            }
+            logger.info("Read directory snapshot " + file + ": " + nd + " directories");
+        } catch (IOException e) {
+            logger.warn("Error reading directory snapshot file " + file + ": " + e);
+            snapshots.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Writes all snapshots to the file.
+     *
+     * @param file
+     * @param snapshots
+     */
+    public static void writeAll(File file, Collection<DocuDirSnapshot> snapshots) {
+        File tf = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tf)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(snapshots.size());
+            for (DocuDirSnapshot s : snapshots) {
+                out.writeUTF(s.dirName);
+                out.writeInt(s.dirMTimes.length);
+                for (long mt : s.dirMTimes) {
+                    out.writeLong(mt);
+                }
+                out.writeInt(s.files.size());
+                for (FileEntry fe : s.files) {
+                    int nl = fe.names.length;
+                    out.writeInt(nl);
+                    for (int l = 0; l < nl; ++l) {
+                        out.writeInt(fe.baseDirs[l]);
+                        out.writeUTF(fe.names[l]);
+                        out.writeInt(fe.widths[l]);
+                        out.writeInt(fe.heights[l]);
+                        out.writeUTF((fe.mimetypes[l] != null) ? fe.mimetypes[l] : "");
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            // move into place
+            file.delete();
+            if (!tf.renameTo(file)) {
+                logger.warn("Unable to rename directory snapshot file " + tf);
+                tf.delete();
+            }
+            logger.debug("Wrote directory snapshot " + file + ": " + snapshots.size() + " directories");
+        } catch (IOException e) {
+            logger.warn("Error writing directory snapshot file " + tf + ": " + e);
+            tf.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+}
@@ -31,6 +31,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
@@ -52,8 +57,8 @@ public abstract class DocuDirectory extends Directory {
     /** type of files in this DocuDirectory */
     protected FileClass fileClass = FileClass.IMAGE;
     
-	/** list of files (DocuDirent) */
-	protected List<DocuDirent> files = null;
+	/** list of files (DocuDirent) (replaced as a whole when the directory is reread) */
+	protected volatile List<DocuDirent> files = null;
 
 	/** directory object is valid (exists on disk) */
 	protected boolean isValid = false;
@@ -68,7 +73,28 @@ public abstract class DocuDirectory extends Directory {
 	protected long objectATime = 0;
 
 	/** time directory was last modified on the file system */
-	protected long dirMTime = 0;
+	protected volatile long dirMTime = 0;
+
+	/** directory is watched for changes (refresh does not check the file system) */
+	protected volatile boolean watched = false;
+
+	/** the file system reported a change (if watched) */
+	protected volatile boolean changed = false;
+
+	/** time of the last check of the modification time */
+	protected long checkTime = 0;
+
+	/** a background task is rereading the directory */
+	protected AtomicBoolean revalidating = new AtomicBoolean(false);
+
+	/** number of files counted for this directory by the DocuDirCache */
+	protected int countedFiles = 0;
+
+	/** minimum time between checks of the modification time (ms) */
+	protected static long revalidateInterval = 0;
+
+	/** executor for rereading changed directories in the background (null means reread while waiting) */
+	protected static ExecutorService refreshExecutor = null;
 
 	/**
 	 * Configure object with digilib directory path and a parent DocuDirCache.
@@ -123,10 +149,11 @@ public abstract class DocuDirectory extends Directory {
 	 * @return
 	 */
 	public DocuDirent get(int index) {
-		if ((files == null) || (index >= files.size())) {
+		List<DocuDirent> fileList = files;
+		if ((fileList == null) || (index >= fileList.size())) {
 			return null;
 		}
-		return files.get(index);
+		return fileList.get(index);
 	}
 
 	/**
@@ -146,29 +173,160 @@ public abstract class DocuDirectory extends Directory {
 	/**
 	 * Read the filesystem directory and fill this object.
 	 * 
-	 * Clears the List and (re)reads all files.
+	 * Clears the List and (re)reads all files if the directory has been 
+	 * modified.
+	 * 
+	 * @return boolean the directory exists
+	 */
+	public boolean readDir() {
+		return readDir(false);
+	}
+
+	/**
+	 * Read the filesystem directory and fill this object.
+	 * 
+	 * Clears the List and (re)reads all files. The current list and 
+	 * modification time stay in place until the new list is ready.
 	 * 
+	 * @param force
+	 *            reread even if the modification time has not changed
 	 * @return boolean the directory exists
 	 */
-	public abstract boolean readDir();
+	public abstract boolean readDir(boolean force);
 
 
 	/**
 	 * Check to see if the directory has been modified and reread if necessary.
 	 * 
+	 * If the directory is watched it is only reread after a change has been 
+	 * reported. Otherwise the modification time is checked at most every
+	 * revalidateInterval ms.
+	 * 
+	 * If the directory has been read before and a refresh executor is set 
+	 * the directory is reread in the background and the current list of 
+	 * files is used until the new list is ready.
+	 * 
 	 * @return boolean the directory is valid
 	 */
     public boolean refresh() {
-        if (isValid) {
-            if (dir.lastModified() > dirMTime) {
-                // on-disk modification time is more recent
-                readDir();
+        if (watched) {
+            if (changed || !isRead()) {
+                changed = false;
+                revalidate(true);
+            }
+        } else if (isValid) {
+            long now = System.currentTimeMillis();
+            if (now - checkTime >= revalidateInterval) {
+                checkTime = now;
+                if (dir.lastModified() > dirMTime) {
+                    // on-disk modification time is more recent
+                    revalidate(false);
+                }
             }
+        }
+        if (isValid) {
             touch();
         }
         return isValid;
     }
 
+    /**
+     * Rereads the directory now or in the background.
+     * 
+     * @param force
+     *            reread even if the modification time has not changed
+     */
+    protected void revalidate(final boolean force) {
+        ExecutorService ex = refreshExecutor;
+        if (ex == null || !isRead()) {
+            reread(force);
+            return;
+        }
+        if (!revalidating.compareAndSet(false, true)) {
+            // already running
+            return;
+        }
+        try {
+            ex.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reread(force);
+                    } finally {
+                        revalidating.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.set(false);
+        }
+    }
+
+    /**
+     * Rereads the directory.
+     * 
+     * @param force
+     *            reread even if the modification time has not changed
+     */
+    protected synchronized void reread(boolean force) {
+        if (force) {
+            isValid = dir.isDirectory();
+            if (!isValid) {
+                return;
+            }
+        }
+        readDir(force);
+    }
+
+    /**
+     * Sets how changed directories are reread.
+     * 
+     * @param interval
+     *            minimum time between checks of the modification time (ms)
+     * @param threads
+     *            number of threads to reread directories in the background
+     *            (0 means reread while the request waits)
+     */
+    public static synchronized void setRevalidation(long interval, int threads) {
+        revalidateInterval = interval;
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+        if (threads > 0) {
+            refreshExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "digilib-dirrefresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+
+	/**
+	 * Returns a snapshot of the contents of the directory or null if this
+	 * is not supported.
+	 * 
+	 * @return
+	 */
+	public DocuDirSnapshot getSnapshot() {
+		return null;
+	}
+
+	/**
+	 * Fills the directory from the snapshot instead of reading it if the 
+	 * directory has not been modified since. Returns false otherwise.
+	 * 
+	 * @param snapshot
+	 * @return
+	 */
+	public boolean restore(DocuDirSnapshot snapshot) {
+		return false;
+	}
+
 
 	/**
 	 * Read directory metadata.
@@ -283,7 +441,7 @@ public abstract class DocuDirectory extends Directory {
 	public DocuDirent find(String fn) {
 		int i = indexOf(fn);
 		if (i >= 0) {
-			return files.get(i);
+			return get(i);
 		}
 		return null;
 	}
@@ -344,6 +502,30 @@ public abstract class DocuDirectory extends Directory {
 		return dirMTime;
 	}
 
+	/**
+	 * Sets if the directory is watched for changes.
+	 * 
+	 * @param watched
+	 */
+	public void setWatched(boolean watched) {
+		this.watched = watched;
+	}
+
+	/**
+	 * @return if the directory is watched for changes
+	 */
+	public boolean isWatched() {
+		return watched;
+	}
+
+	/**
+	 * Marks the (watched) directory as changed on the file system.
+	 * It is reread on the next refresh.
+	 */
+	public void setChanged() {
+		this.changed = true;
+	}
+
     public DirMeta getMeta() {
         return meta;
     }
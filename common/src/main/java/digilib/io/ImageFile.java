@@ -78,16 +78,27 @@ public class ImageFile extends ImageInput {
 	
 	/** Checks the image and sets size and type.
 	 * 
+	 * Uses the index of the directory if the file has not changed.
+	 * Synchronized because images may be identified in the background.
 	 */
-	public void check() {
+	public synchronized void check() {
 	    if (pixelSize == null) {
+	        ImageIndex index = (dir != null) ? dir.getIndex() : null;
+	        if (index != null && index.apply(this)) {
+	            return;
+	        }
+	        ImageInput ii = null;
 	        try {
 	            // use the configured toolkit to identify the image
                 DocuImage di = DocuImageFactory.getInstance();
-                di.identify(this);
+                ii = di.identify(this);
             } catch (IOException e) {
                 // nothing much to do...
             }
+	        if (index != null && ii != null) {
+	            // only record successful identifications
+	            index.put(this, pixelSize, mimetype);
+	        }
 	    }
 	}
 	
@@ -127,6 +138,15 @@ public class ImageFile extends ImageInput {
 	}
 
 	
+	/** Returns the directory of the file.
+	 * 
+	 * @return
+	 */
+	public Directory getDirectory() {
+		return dir;
+	}
+
+	
 	/* (non-Javadoc)
      * @see digilib.io.ImageInput#hasImageInputStream()
      */
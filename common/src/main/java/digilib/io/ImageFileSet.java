@@ -68,6 +68,22 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
         fill(scaleDirs, file);
     }
 
+    /**
+     * Constructor with a File and the parent Directory. 
+     * 
+     * The ImageFiles have to be added.
+     * 
+     * @param file
+     * @param parentDir
+     */
+    public ImageFileSet(File file, Directory parentDir) {
+        list = new ArrayList<ImageInput>(2);
+        this.parentDir = parentDir;
+        this.file = file;
+        name = file.getName();
+        meta = MetaFactory.getFileMetaInstance();
+    }
+
     /* (non-Javadoc)
      * @see digilib.io.DocuDirent#getName()
      */
@@ -0,0 +1,225 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ImageIdentifier -- identifies the images of a directory in the background.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.util.DigilibJobCenter;
+
+/**
+ * Identifies all images of a directory in the background after it has been
+ * read, so that later requests find the sizes and types already known.
+ *
+ * The images of a directory are split into one job per thread. The jobs run
+ * on a fixed number of low-priority threads with a bounded queue (jobs that
+ * do not fit are dropped) and pause while the image job center has waiting
+ * jobs.
+ *
+ * Without setup no images are identified in the background.
+ *
+ * @author casties
+ *
+ */
+public class ImageIdentifier {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageIdentifier.class);
+
+    /** the thread pool (null if off) */
+    protected static ThreadPoolExecutor executor = null;
+
+    /** the image job center */
+    protected static DigilibJobCenter<?> jobCenter = null;
+
+    /** time to wait while the image job center is busy (ms) */
+    protected static long busyWait = 100;
+
+    /** number of images identified in the background */
+    protected static AtomicInteger identified = new AtomicInteger(0);
+
+    /** number of jobs dropped because the queue was full */
+    protected static AtomicInteger dropped = new AtomicInteger(0);
+
+    /**
+     * Job identifying every step-th image of a directory starting at start.
+     */
+    protected static class IdentifyJob implements Runnable {
+        protected DocuDirectory dir;
+        protected int start;
+        protected int step;
+
+        public IdentifyJob(DocuDirectory dir, int start, int step) {
+            this.dir = dir;
+            this.start = start;
+            this.step = step;
+        }
+
+        @Override
+        public void run() {
+            int n = dir.size();
+            for (int i = start; i < n; i += step) {
+                DocuDirent f = dir.get(i);
+                if (!(f instanceof ImageSet)) {
+                    continue;
+                }
+                ImageSet is = (ImageSet) f;
+                for (int j = 0; j < is.size(); ++j) {
+                    if (!waitForJobCenter()) {
+                        return;
+                    }
+                    ImageInput ii = is.get(j);
+                    if (ii instanceof ImageFile) {
+                        ((ImageFile) ii).check();
+                        identified.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up the pool with the given number of threads and maximum number
+     * of waiting jobs.
+     *
+     * Images are not identified in the background if threads is less than
+     * 1.
+     *
+     * @param threads
+     * @param maxQueueLen
+     * @param jobCenter
+     *            image job center (may be null)
+     */
+    public static synchronized void setup(int threads, int maxQueueLen, DigilibJobCenter<?> jobCenter) {
+        shutdown();
+        if (threads > 0) {
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(maxQueueLen, 1)), new ThreadFactory() {
+                        private AtomicInteger num = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "digilib-identify-" + num.incrementAndGet());
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+            logger.debug("ImageIdentifier using " + threads + " threads");
+        }
+        ImageIdentifier.jobCenter = jobCenter;
+    }
+
+    /**
+     * Shuts down the pool.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns if images are identified in the background.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Submits jobs to identify all images of the directory.
+     *
+     * @param dir
+     */
+    public static void identify(DocuDirectory dir) {
+        ThreadPoolExecutor ex = executor;
+        if (ex == null || dir.size() == 0) {
+            return;
+        }
+        int step = Math.min(ex.getCorePoolSize(), dir.size());
+        for (int i = 0; i < step; ++i) {
+            try {
+                ex.execute(new IdentifyJob(dir, i, step));
+            } catch (RejectedExecutionException e) {
+                dropped.incrementAndGet();
+                logger.debug("ImageIdentifier queue full, dropping job for " + dir.getDirName());
+            }
+        }
+    }
+
+    /**
+     * Waits while the image job center has waiting jobs. Returns false if
+     * the thread has been interrupted.
+     *
+     * @return
+     */
+    protected static boolean waitForJobCenter() {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        while (jobCenter != null && jobCenter.getWaitingJobs() > 0) {
+            try {
+                Thread.sleep(busyWait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of images identified in the background
+     */
+    public static int getIdentified() {
+        return identified.get();
+    }
+
+    /**
+     * @return the number of jobs dropped because the queue was full
+     */
+    public static int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of waiting jobs
+     */
+    public static int getWaitingJobs() {
+        ThreadPoolExecutor ex = executor;
+        return (ex != null) ? ex.getQueue().size() : 0;
+    }
+
+}
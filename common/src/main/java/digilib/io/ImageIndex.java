@@ -0,0 +1,334 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ImageIndex -- persistent index of image sizes and types of a directory.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.image.ImageCache;
+import digilib.util.ImageSize;
+
+/**
+ * Persistent index of the sizes and mime-types of the image files in a
+ * directory.
+ *
+ * Every entry records the modification time of the file and is only used
+ * while the file is unchanged. The index of a directory is stored in one
+ * binary file in the index directory (named by the hash of the directory
+ * path). Changed indexes are written at most every saveInterval ms and by
+ * saveAll().
+ *
+ * The index is not used if no index directory is set.
+ *
+ * @author casties
+ *
+ */
+public class ImageIndex {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageIndex.class);
+
+    /** file extension for index files */
+    protected static final String INDEX_FILE_EXT = ".dlidx";
+
+    /** magic number and version of index files */
+    protected static final int INDEX_MAGIC = 0x646c6978;
+    protected static final int INDEX_VERSION = 1;
+
+    /** directory for the index files (null means no index) */
+    protected static File indexDir = null;
+
+    /** minimum time between writes of an index (ms) */
+    protected static long saveInterval = 10000;
+
+    /** indexes with unsaved changes */
+    protected static ConcurrentMap<ImageIndex, Boolean> dirtyIndexes = new ConcurrentHashMap<ImageIndex, Boolean>();
+
+    /** number of files identified from an index */
+    protected static AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of files not found in an index (or changed) */
+    protected static AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Index entry for one file.
+     */
+    protected static class Entry {
+        long mtime;
+        int width;
+        int height;
+        String mimetype;
+    }
+
+    /** the indexed directory */
+    protected File dir;
+
+    /** the entries by file name */
+    protected Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** time of the last write */
+    protected long lastSave = 0;
+
+    /**
+     * Index for the directory dir.
+     *
+     * @param dir
+     */
+    protected ImageIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the index of the directory (loaded from its index file if it
+     * exists) or null if no index directory is set.
+     *
+     * @param dir
+     * @return
+     */
+    public static ImageIndex load(File dir) {
+        if (indexDir == null || dir == null) {
+            return null;
+        }
+        ImageIndex index = new ImageIndex(dir);
+        index.read();
+        return index;
+    }
+
+    /**
+     * Sets size and mime-type of the ImageFile from its entry. Returns false
+     * if there is no entry or the file has changed.
+     *
+     * @param imgf
+     * @return
+     */
+    public boolean apply(ImageFile imgf) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(imgf.getName());
+        }
+        if (e == null || e.mtime != imgf.getFile().lastModified()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        imgf.setSize(new ImageSize(e.width, e.height));
+        imgf.setMimetype(e.mimetype);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records size and mime-type of the identified ImageFile.
+     *
+     * The values are passed in because the getters of the ImageFile would
+     * check (and identify) the file again.
+     *
+     * @param imgf
+     * @param size
+     * @param mt
+     */
+    public void put(ImageFile imgf, ImageSize size, String mt) {
+        if (size == null || mt == null) {
+            return;
+        }
+        Entry e = new Entry();
+        e.mtime = imgf.getFile().lastModified();
+        e.width = size.getWidth();
+        e.height = size.getHeight();
+        e.mimetype = mt;
+        boolean save = false;
+        synchronized (this) {
+            entries.put(imgf.getName(), e);
+            long now = System.currentTimeMillis();
+            if (now - lastSave > saveInterval) {
+                lastSave = now;
+                save = true;
+            }
+        }
+        if (save) {
+            write();
+        } else {
+            dirtyIndexes.put(this, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Reads the index file.
+     */
+    protected void read() {
+        File f = getIndexFile();
+        if (!f.canRead()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || !in.readUTF().equals(dir.getPath())) {
+                logger.warn("Invalid image index file " + f);
+                return;
+            }
+            int n = in.readInt();
+            Map<String, Entry> map = new HashMap<String, Entry>(n * 4 / 3 + 1);
+            for (int i = 0; i < n; ++i) {
+                String name = in.readUTF();
+                Entry e = new Entry();
+                e.mtime = in.readLong();
+                e.width = in.readInt();
+                e.height = in.readInt();
+                e.mimetype = in.readUTF().intern();
+                map.put(name, e);
+            }
+            synchronized (this) {
+                entries = map;
+            }
+            logger.debug("Read image index for " + dir + ": " + n + " entries");
+        } catch (IOException e) {
+            logger.warn("Error reading image index file " + f + ": " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index file.
+     */
+    protected void write() {
+        dirtyIndexes.remove(this);
+        File f = getIndexFile();
+        File tf = new File(indexDir, f.getName() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tf)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(dir.getPath());
+            synchronized (this) {
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey());
+                    out.writeLong(e.mtime);
+                    out.writeInt(e.width);
+                    out.writeInt(e.height);
+                    out.writeUTF(e.mimetype);
+                }
+                lastSave = System.currentTimeMillis();
+            }
+            out.close();
+            out = null;
+            // move into place
+            f.delete();
+            if (!tf.renameTo(f)) {
+                logger.warn("Unable to rename image index file " + tf);
+                tf.delete();
+            }
+        } catch (IOException e) {
+            logger.warn("Error writing image index file " + tf + ": " + e);
+            tf.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index file for the directory.
+     *
+     * @return
+     */
+    protected File getIndexFile() {
+        return new File(indexDir, ImageCache.hashKey(dir.getPath()) + INDEX_FILE_EXT);
+    }
+
+    /**
+     * Writes all indexes with unsaved changes.
+     */
+    public static void saveAll() {
+        for (ImageIndex index : dirtyIndexes.keySet()) {
+            index.write();
+        }
+    }
+
+    /**
+     * Sets the directory for the index files (null means no index).
+     *
+     * @param dir
+     */
+    public static void setIndexDir(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            logger.error("Unable to create image index directory " + dir);
+            dir = null;
+        }
+        indexDir = dir;
+    }
+
+    /**
+     * @return the directory for the index files
+     */
+    public static File getIndexDir() {
+        return indexDir;
+    }
+
+    /**
+     * @return the number of files identified from an index
+     */
+    public static int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of files not found in an index
+     */
+    public static int getMisses() {
+        return misses.get();
+    }
+
+}
@@ -25,6 +25,7 @@ package digilib.meta;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -126,6 +127,29 @@ public class IndexMetaDirMeta implements DirMeta {
         if (ds == 0) {
             return;
         }
+        if (fileMeta.size() < ds) {
+            // look up the files with metadata (without touching the others)
+            for (Iterator<Map.Entry<String, MetadataMap>> i = fileMeta.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, MetadataMap> e = i.next();
+                String fn = e.getKey();
+                if (!fn.startsWith(path) || fn.indexOf('/', path.length()) >= 0) {
+                    // not in this directory
+                    continue;
+                }
+                String name = fn.substring(path.length());
+                int idx = dir.indexOf(name);
+                if (idx < 0) {
+                    continue;
+                }
+                DocuDirent f = dir.get(idx);
+                if (f != null && name.equals(f.getName())) {
+                    // store meta in file and remove from dir
+                    f.getMeta().setFileMeta(e.getValue());
+                    i.remove();
+                }
+            }
+            return;
+        }
         // iterate through the list of files in this directory
         for (int i = 0; i < ds; ++i) {
             DocuDirent f = dir.get(i);
@@ -26,10 +26,15 @@ package digilib.util;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -49,6 +54,36 @@ public class DigilibJobCenter<V> {
     private int maxQueueLen = 50;
     /** label for this job center */
     private String label = "";
+    /** shared jobs in progress by key */
+    private ConcurrentMap<Object, SharedTask<?>> sharedJobs = new ConcurrentHashMap<Object, SharedTask<?>>();
+    /** number of submitted jobs that were attached to a shared job in progress */
+    private AtomicInteger coalescedJobs = new AtomicInteger(0);
+    
+    /** FutureTask that removes itself from the shared jobs when it is done.
+     */
+    protected class SharedTask<T> extends FutureTask<T> {
+        /** key of the shared job */
+        protected Object key;
+        /** the submitted job */
+        protected Object job;
+
+        public SharedTask(Object key, Callable<T> job) {
+            super(job);
+            this.key = key;
+            this.job = job;
+        }
+
+        public SharedTask(Object key, Runnable job) {
+            super(job, null);
+            this.key = key;
+            this.job = job;
+        }
+
+        @Override
+        protected void done() {
+            sharedJobs.remove(key, this);
+        }
+    }
     
     /** Create a DigilibJobcenter with the given number of threads and queue length.
      * If prestart=true it starts the threads in the thread pool.
@@ -89,6 +124,66 @@ public class DigilibJobCenter<V> {
         return executor.submit(job);
     }
 
+    /** Submit Callable job to execute as a shared job.
+     * 
+     * If a shared job with an equal key is in progress the job is not 
+     * executed and the Future of the running job is returned instead.
+     * The result of a shared job is returned to all callers so it should
+     * not be modified.
+     * 
+     * @param key
+     * @param job
+     * @return Future to control the job
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> submitShared(Object key, Callable<T> job) {
+        SharedTask<T> task = new SharedTask<T>(key, job);
+        SharedTask<?> running = sharedJobs.putIfAbsent(key, task);
+        if (running != null) {
+            coalescedJobs.incrementAndGet();
+            logger.debug(label+" attaching to running job "+key);
+            return (Future<T>) running;
+        }
+        execute(task);
+        return task;
+    }
+
+    /** Submit Runnable job to execute as a shared job.
+     * 
+     * If a shared job with an equal key is in progress the job is not 
+     * executed and the running job is returned instead.
+     * 
+     * @param key
+     * @param job
+     * @return the job that is executed
+     */
+    @SuppressWarnings("unchecked")
+    public <R extends Runnable> R submitShared(Object key, R job) {
+        SharedTask<Object> task = new SharedTask<Object>(key, job);
+        SharedTask<?> running = sharedJobs.putIfAbsent(key, task);
+        if (running != null) {
+            coalescedJobs.incrementAndGet();
+            logger.debug(label+" attaching to running job "+key);
+            return (R) running.job;
+        }
+        execute(task);
+        return job;
+    }
+
+    /** Execute shared task and remove it from the shared jobs if it 
+     * is rejected.
+     * 
+     * @param task
+     */
+    protected void execute(SharedTask<?> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            sharedJobs.remove(task.key, task);
+            throw e;
+        }
+    }
+
     /** Returns if the service is overloaded.
      *  
      * @return
@@ -116,6 +211,21 @@ public class DigilibJobCenter<V> {
         return jql;
     }
 
+    /** Returns the number of currently running or waiting shared jobs.
+     * @return
+     */
+    public int getSharedJobs() {
+        return sharedJobs.size();
+    }
+
+    /** Returns the number of submitted jobs that were attached to a shared 
+     * job in progress.
+     * @return
+     */
+    public int getCoalescedJobs() {
+        return coalescedJobs.get();
+    }
+
     public void setMaxThreads(int maxThreads) {
         this.maxThreads = maxThreads;
     }
@@ -0,0 +1,137 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageCacheTest -- tests for ImageCache
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ImageCacheTest -- tests for ImageCache
+ * 
+ * @author casties
+ *
+ */
+public class ImageCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    protected static EncodedImage createImage(int length, long mtime) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) i;
+        }
+        return new EncodedImage(data, "image/jpeg", mtime);
+    }
+
+    @Test
+    public void testMemoryHit() {
+        ImageCache cache = new ImageCache(1000, null, 0);
+        EncodedImage img = createImage(100, 1);
+        cache.put("a", img);
+        assertEquals(img, cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+        assertEquals("hits", 1, cache.getHits());
+        assertEquals("misses", 1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidation() {
+        ImageCache cache = new ImageCache(1000, null, 0);
+        cache.put("a", createImage(100, 1));
+        // source has changed
+        assertNull(cache.get("a", 2));
+        assertEquals("invalidations", 1, cache.getInvalidations());
+        assertEquals("entries", 0, cache.getMemEntries());
+        assertEquals("size", 0, cache.getMemSize());
+    }
+
+    @Test
+    public void testMemoryEviction() {
+        ImageCache cache = new ImageCache(250, null, 0);
+        cache.put("a", createImage(100, 1));
+        cache.put("b", createImage(100, 1));
+        // use a so b is the least recently used
+        assertNotNull(cache.get("a", 1));
+        cache.put("c", createImage(100, 1));
+        assertEquals("entries", 2, cache.getMemEntries());
+        assertEquals("size", 200, cache.getMemSize());
+        assertNotNull(cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+        assertNotNull(cache.get("c", 1));
+        // too big for memory
+        cache.put("d", createImage(300, 1));
+        assertNull(cache.get("d", 1));
+        assertEquals("size", 200, cache.getMemSize());
+    }
+
+    @Test
+    public void testDiskTier() throws IOException {
+        File dir = tmp.newFolder("cache");
+        ImageCache cache = new ImageCache(0, dir, 10000);
+        EncodedImage img = createImage(100, 5);
+        cache.put("a", img);
+        assertEquals("disk entries", 1, cache.getDiskEntries());
+        // new cache reads the index from the directory
+        ImageCache cache2 = new ImageCache(0, dir, 10000);
+        assertEquals("disk entries", 1, cache2.getDiskEntries());
+        EncodedImage img2 = cache2.get("a", 5);
+        assertNotNull(img2);
+        assertEquals(img.getMimeType(), img2.getMimeType());
+        assertEquals(img.getLength(), img2.getLength());
+        for (int i = 0; i < img.getLength(); ++i) {
+            assertEquals(img.getData()[i], img2.getData()[i]);
+        }
+        // source has changed
+        assertNull(cache2.get("a", 6));
+        assertEquals("disk entries", 0, cache2.getDiskEntries());
+    }
+
+    @Test
+    public void testDiskEviction() throws IOException {
+        File dir = tmp.newFolder("cache");
+        ImageCache cache = new ImageCache(0, dir, 1000);
+        for (int i = 0; i < 10; ++i) {
+            cache.put("k" + i, createImage(300, 1));
+        }
+        // every file is bigger than 300 bytes
+        assertTrue("disk size", cache.getDiskSize() <= 1000);
+        assertTrue("disk entries", cache.getDiskEntries() <= 3);
+        assertNotNull(cache.get("k9", 1));
+        assertNull(cache.get("k0", 1));
+    }
+
+}
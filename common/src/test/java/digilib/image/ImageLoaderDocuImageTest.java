@@ -0,0 +1,104 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageLoaderDocuImageTest -- tests for ImageLoaderDocuImage
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * ImageLoaderDocuImageTest -- tests for ImageLoaderDocuImage
+ * 
+ * @author casties
+ *
+ */
+public class ImageLoaderDocuImageTest {
+
+    @AfterClass
+    public static void stopStripes() {
+        StripeExecutor.shutdown();
+    }
+
+    /**
+     * Returns an image of the given type with random pixels.
+     */
+    protected static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random rnd = new Random(42);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                img.setRGB(x, y, rnd.nextInt());
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Returns the pixels of the blurred image.
+     */
+    protected static int[] blur(BufferedImage src, int radius, boolean striped) throws ImageOpException {
+        if (striped) {
+            StripeExecutor.setup(4, 0, null);
+        } else {
+            StripeExecutor.shutdown();
+        }
+        ImageLoaderDocuImage di = new ImageLoaderDocuImage();
+        di.setQuality(1);
+        di.img = src;
+        di.blur(radius);
+        BufferedImage img = di.img;
+        assertEquals("width", src.getWidth(), img.getWidth());
+        assertEquals("height", src.getHeight(), img.getHeight());
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    protected static void testBlurStripes(int type) throws ImageOpException {
+        BufferedImage src = createImage(97, 203, type);
+        // even and odd kernels
+        for (int radius = 2; radius <= 7; ++radius) {
+            int[] single = blur(src, radius, false);
+            int[] striped = blur(src, radius, true);
+            assertArrayEquals("striped blur radius " + radius, single, striped);
+        }
+    }
+
+    @Test
+    public void testBlurStripesRgb() throws ImageOpException {
+        testBlurStripes(BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void testBlurStripes3ByteBgr() throws ImageOpException {
+        testBlurStripes(BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+}
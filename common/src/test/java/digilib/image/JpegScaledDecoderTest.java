@@ -0,0 +1,235 @@
+package digilib.image;
+
+/*
+ * #%L
+ * JpegScaledDecoderTest -- tests for JpegScaledDecoder
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+/**
+ * JpegScaledDecoderTest -- tests for JpegScaledDecoder
+ * 
+ * Compares the scaled images with images read by ImageIO.
+ * 
+ * @author casties
+ *
+ */
+public class JpegScaledDecoderTest {
+
+    /** maximum mean difference of a sample to the ImageIO image */
+    public static final double MAX_MEAN_ERROR = 4d;
+
+    /**
+     * Returns an image of the given type with smooth content.
+     */
+    protected static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int r = (int) (128 + 100 * Math.sin(x / 9d));
+                int g = (int) (128 + 100 * Math.cos(y / 7d));
+                int b = (int) (128 + 60 * Math.sin((x + y) / 11d));
+                img.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Encodes the image as JPEG.
+     * 
+     * @param img
+     * @param progressive
+     * @param restartInterval
+     *            (0 means no restart markers)
+     * @return
+     * @throws IOException
+     */
+    protected static byte[] encode(BufferedImage img, boolean progressive, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        IIOMetadata meta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+        if (restartInterval > 0) {
+            // add DRI marker before the scan
+            String fmt = "javax_imageio_jpeg_image_1.0";
+            IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(fmt);
+            IIOMetadataNode seq = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            Node sos = seq.getElementsByTagName("sos").item(0);
+            seq.insertBefore(dri, sos);
+            meta.setFromTree(fmt, root);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bos);
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(img, null, meta), param);
+        out.close();
+        writer.dispose();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Inserts an APP2 ICC profile segment (with dummy data) after SOI.
+     */
+    protected static byte[] addIccSegment(byte[] jpg) {
+        byte[] id = { 'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0, 1, 1 };
+        int len = id.length + 16 + 2;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(jpg, 0, 2);
+        bos.write(0xff);
+        bos.write(0xe2);
+        bos.write(len >> 8);
+        bos.write(len & 0xff);
+        bos.write(id, 0, id.length);
+        bos.write(new byte[16], 0, 16);
+        bos.write(jpg, 2, jpg.length - 2);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns the region of the JPEG read by ImageIO with subsampling.
+     */
+    protected static BufferedImage readImageIO(byte[] jpg, Rectangle region, int scale) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(jpg)));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(scale, scale, 0, 0);
+        BufferedImage img = reader.read(0, param);
+        reader.dispose();
+        return img;
+    }
+
+    /**
+     * Compares the scaled region with the averages of the scale x scale
+     * pixels of the full resolution image read by ImageIO that contain the
+     * samples of ImageIO's subsampling.
+     */
+    protected static void compare(byte[] jpg, Rectangle region, int scale, int bands) throws IOException {
+        BufferedImage dimg = new JpegScaledDecoder(new ByteArrayInputStream(jpg)).decode(region, scale);
+        assertNotNull("decoded image", dimg);
+        BufferedImage simg = readImageIO(jpg, region, scale);
+        String info = " scale=" + scale + " region=" + region;
+        assertEquals("width" + info, simg.getWidth(), dimg.getWidth());
+        assertEquals("height" + info, simg.getHeight(), dimg.getHeight());
+        BufferedImage full = ImageIO.read(new ByteArrayInputStream(jpg));
+        int fw = full.getWidth();
+        int fh = full.getHeight();
+        double err = 0;
+        int n = 0;
+        for (int y = 0; y < dimg.getHeight(); ++y) {
+            for (int x = 0; x < dimg.getWidth(); ++x) {
+                // pixels containing the ImageIO sample
+                int x0 = (region.x + x * scale) / scale * scale;
+                int y0 = (region.y + y * scale) / scale * scale;
+                int dp = dimg.getRGB(x, y);
+                for (int b = 0; b < bands; ++b) {
+                    int sh = b * 8;
+                    double sum = 0;
+                    int cnt = 0;
+                    for (int fy = y0; fy < Math.min(y0 + scale, fh); ++fy) {
+                        for (int fx = x0; fx < Math.min(x0 + scale, fw); ++fx) {
+                            sum += (full.getRGB(fx, fy) >> sh) & 0xff;
+                            ++cnt;
+                        }
+                    }
+                    err += Math.abs(((dp >> sh) & 0xff) - sum / cnt);
+                    ++n;
+                }
+            }
+        }
+        double mean = err / n;
+        assertTrue("mean error " + mean + info, mean < MAX_MEAN_ERROR);
+    }
+
+    protected static void compareRegions(byte[] jpg, int bands) throws IOException {
+        for (int scale = 2; scale <= 8; scale *= 2) {
+            compare(jpg, new Rectangle(0, 0, 301, 203), scale, bands);
+            compare(jpg, new Rectangle(3, 5, 150, 100), scale, bands);
+            compare(jpg, new Rectangle(37, 61, 201, 99), scale, bands);
+            compare(jpg, new Rectangle(250, 150, 100, 100), scale, bands);
+        }
+    }
+
+    @Test
+    public void testBaseline() throws IOException {
+        byte[] jpg = encode(createImage(301, 203, BufferedImage.TYPE_3BYTE_BGR), false, 0);
+        compareRegions(jpg, 3);
+    }
+
+    @Test
+    public void testGray() throws IOException {
+        byte[] jpg = encode(createImage(301, 203, BufferedImage.TYPE_BYTE_GRAY), false, 0);
+        compareRegions(jpg, 1);
+    }
+
+    @Test
+    public void testRestartMarkers() throws IOException {
+        byte[] jpg = encode(createImage(301, 203, BufferedImage.TYPE_3BYTE_BGR), false, 3);
+        compareRegions(jpg, 3);
+    }
+
+    @Test
+    public void testProgressive() throws IOException {
+        // progressive images are left to ImageIO
+        byte[] jpg = encode(createImage(301, 203, BufferedImage.TYPE_3BYTE_BGR), true, 0);
+        assertNull(new JpegScaledDecoder(new ByteArrayInputStream(jpg)).decode(null, 2));
+    }
+
+    @Test
+    public void testIccProfile() throws IOException {
+        // images with ICC profile are left to ImageIO
+        byte[] jpg = addIccSegment(encode(createImage(301, 203, BufferedImage.TYPE_3BYTE_BGR), false, 0));
+        assertNull(new JpegScaledDecoder(new ByteArrayInputStream(jpg)).decode(null, 2));
+    }
+
+}
@@ -0,0 +1,139 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirCacheTest -- tests for the negative cache of DocuDirCache
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.conf.DigilibConfiguration;
+
+/**
+ * DocuDirCacheTest -- tests for the negative cache of DocuDirCache
+ * 
+ * @author casties
+ *
+ */
+public class DocuDirCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    protected File baseDir;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Before
+    public void setUp() throws Exception {
+        baseDir = tmp.newFolder("base");
+        DocuDirectory.setRevalidation(0, 0);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class) BaseDirDocuDirectory.class);
+    }
+
+    protected DocuDirCache createCache(int negativeSize) throws Exception {
+        DigilibConfiguration config = new DigilibConfiguration();
+        config.configure();
+        config.newParameter("basedir-list", null, new String[] { baseDir.getPath() }, 'f');
+        config.newParameter("dir-cache-negative-ttl", new Integer(60), null, 'f');
+        config.newParameter("dir-cache-negative-size", new Integer(negativeSize), null, 'f');
+        DocuDirectoryFactory.setDigilibConfig(config);
+        return new DocuDirCache(FileOps.FileClass.IMAGE, config);
+    }
+
+    protected void createImage(File dir, String name) throws IOException {
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), "png", new File(dir, name));
+    }
+
+    /**
+     * Sets a modification time clearly later than the current one.
+     */
+    protected static void touch(File f) {
+        assertTrue(f.setLastModified(f.lastModified() + 5000));
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        File books = new File(baseDir, "books");
+        assertTrue(books.mkdir());
+        createImage(books, "a.png");
+        DocuDirCache cache = createCache(100);
+        assertNotNull(cache.getFile("books/a.png", 1));
+        assertNull(cache.getFile("books/b.png", 1));
+        assertEquals("entries", 1, cache.getNegativeSize());
+        assertNull(cache.getFile("books/b.png", 1));
+        assertEquals("negative hits", 1, cache.getNegativeHits());
+        // creating the file changes the directory
+        createImage(books, "b.png");
+        touch(books);
+        assertNotNull(cache.getFile("books/b.png", 1));
+        assertEquals("negative hits", 1, cache.getNegativeHits());
+        assertEquals("entries", 0, cache.getNegativeSize());
+    }
+
+    @Test
+    public void testMissingDirectory() throws Exception {
+        DocuDirCache cache = createCache(100);
+        assertNull(cache.getDirectory("missing/sub"));
+        assertNull(cache.getDirectory("missing/sub"));
+        assertEquals("negative hits", 1, cache.getNegativeHits());
+        // creating the directory changes the nearest existing ancestor
+        File sub = new File(baseDir, "missing/sub");
+        assertTrue(sub.mkdirs());
+        createImage(sub, "a.png");
+        touch(baseDir);
+        assertNotNull(cache.getDirectory("missing/sub"));
+        assertEquals("negative hits", 1, cache.getNegativeHits());
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        File books = new File(baseDir, "books");
+        assertTrue(books.mkdir());
+        createImage(books, "a.png");
+        DocuDirCache cache = createCache(3);
+        for (int i = 0; i < 10; ++i) {
+            assertNull(cache.getFile("books/missing" + i + ".png", 1));
+            assertTrue("bounded", cache.getNegativeSize() <= 3);
+        }
+        // the last entry is still there
+        assertNull(cache.getFile("books/missing9.png", 1));
+        assertEquals("negative hits", 1, cache.getNegativeHits());
+    }
+
+}
@@ -0,0 +1,138 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ImageIndexTest -- tests for ImageIndex
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.image.DocuImage;
+import digilib.image.DocuImageFactory;
+import digilib.image.ImageLoaderDocuImage;
+import digilib.util.ImageSize;
+
+/**
+ * ImageIndexTest -- tests for ImageIndex
+ * 
+ * @author casties
+ *
+ */
+public class ImageIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    protected File imageDir;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() throws IOException {
+        DocuImageFactory.setDocuImageClass((Class<DocuImage>) (Class<?>) ImageLoaderDocuImage.class);
+        ImageIndex.setIndexDir(tmp.newFolder("index"));
+        imageDir = tmp.newFolder("images");
+    }
+
+    @After
+    public void tearDown() {
+        ImageIndex.setIndexDir(null);
+    }
+
+    protected File createImage(String name, int width, int height) throws IOException {
+        File f = new File(imageDir, name);
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", f);
+        return f;
+    }
+
+    protected ImageFile createImageFile(File f) {
+        Directory dir = new Directory(imageDir);
+        dir.setIndex(ImageIndex.load(imageDir));
+        return new ImageFile(f, null, dir);
+    }
+
+    protected static void assertSize(int width, int height, ImageSize size) {
+        assertNotNull(size);
+        assertEquals(width, size.getWidth());
+        assertEquals(height, size.getHeight());
+    }
+
+    @Test
+    public void testIdentifyAndApply() throws IOException {
+        File f = createImage("a.png", 30, 20);
+        ImageFile imgf = createImageFile(f);
+        imgf.check();
+        assertSize(30, 20, imgf.getSize());
+        assertEquals("image/png", imgf.getMimetype());
+        ImageIndex.saveAll();
+        ImageIndex index = ImageIndex.load(imageDir);
+        ImageFile imgf2 = new ImageFile(f, null, null);
+        assertTrue("applied", index.apply(imgf2));
+        assertSize(30, 20, imgf2.getSize());
+        assertEquals("image/png", imgf2.getMimetype());
+    }
+
+    @Test
+    public void testChangedFile() throws IOException {
+        File f = createImage("a.png", 30, 20);
+        ImageIndex index = ImageIndex.load(imageDir);
+        index.put(new ImageFile(f, null, null), new ImageSize(30, 20), "image/png");
+        assertTrue(f.setLastModified(f.lastModified() + 2000));
+        assertFalse("changed file", index.apply(new ImageFile(f, null, null)));
+    }
+
+    @Test
+    public void testCorruptImage() throws IOException {
+        File f = new File(imageDir, "broken.jpg");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, 0, 1, 2, 3 });
+        out.close();
+        ImageFile imgf = createImageFile(f);
+        // must not recurse into check()
+        imgf.check();
+        assertNull(imgf.getSize());
+        // failed identifications are not recorded
+        ImageIndex index = imgf.getDirectory().getIndex();
+        assertNotNull(index);
+        assertFalse("not recorded", index.apply(new ImageFile(f, null, null)));
+    }
+
+}
@@ -0,0 +1,150 @@
+package digilib.util;
+
+/*
+ * #%L
+ * DigilibJobCenterTest -- tests for DigilibJobCenter
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DigilibJobCenterTest -- tests for DigilibJobCenter
+ * 
+ * @author casties
+ *
+ */
+public class DigilibJobCenterTest {
+
+    protected DigilibJobCenter<Integer> jobCenter;
+
+    /** number of jobs that ran */
+    protected AtomicInteger runs = new AtomicInteger(0);
+
+    /**
+     * Job that waits for the latch.
+     */
+    protected class WaitingJob implements Callable<Integer> {
+        CountDownLatch latch;
+
+        WaitingJob(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            latch.await(10, TimeUnit.SECONDS);
+            return runs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runnable job that waits for the latch.
+     */
+    protected class WaitingRunnable implements Runnable {
+        CountDownLatch latch;
+
+        WaitingRunnable(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+                runs.incrementAndGet();
+            } catch (InterruptedException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    @Before
+    public void startJobCenter() {
+        jobCenter = new DigilibJobCenter<Integer>(2, 10, false, "test");
+    }
+
+    @After
+    public void stopJobCenter() {
+        jobCenter.shutdownNow();
+    }
+
+    /**
+     * Waits until all shared jobs are done and removed.
+     */
+    protected void waitForSharedJobs() throws InterruptedException {
+        long t = System.currentTimeMillis();
+        while (jobCenter.getSharedJobs() > 0 && System.currentTimeMillis() - t < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals("shared jobs", 0, jobCenter.getSharedJobs());
+    }
+
+    @Test
+    public void testSharedCallable() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Future<Integer> f1 = jobCenter.submitShared("a", new WaitingJob(latch));
+        Future<Integer> f2 = jobCenter.submitShared("a", new WaitingJob(latch));
+        Future<Integer> f3 = jobCenter.submitShared("b", new WaitingJob(latch));
+        assertSame("same key shares the job", f1, f2);
+        assertNotSame("different key", f1, f3);
+        assertEquals("coalesced", 1, jobCenter.getCoalescedJobs());
+        latch.countDown();
+        f1.get();
+        f3.get();
+        assertEquals("runs", 2, runs.get());
+        waitForSharedJobs();
+        // the job is not shared after it is done
+        Future<Integer> f4 = jobCenter.submitShared("a", new WaitingJob(latch));
+        assertNotSame("new job after done", f1, f4);
+        f4.get();
+        assertEquals("runs", 3, runs.get());
+        waitForSharedJobs();
+    }
+
+    @Test
+    public void testSharedRunnable() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        WaitingRunnable j1 = new WaitingRunnable(latch);
+        WaitingRunnable j2 = new WaitingRunnable(latch);
+        assertSame(j1, jobCenter.submitShared("a", j1));
+        assertSame("same key returns running job", j1, jobCenter.submitShared("a", j2));
+        latch.countDown();
+        waitForSharedJobs();
+        assertEquals("runs", 1, runs.get());
+        assertEquals("coalesced", 1, jobCenter.getCoalescedJobs());
+    }
+
+}
@@ -185,7 +185,7 @@ public class PDFCache extends HttpServlet {
             } else if (status == PDFStatus.DONE) {
                 // pdf created -- send it
                 try {
-                    ServletOps.sendFile(getCacheFile(docid), "application/pdf", getDownloadFilename(pdfji), response, logger);
+                    ServletOps.sendFile(getCacheFile(docid), "application/pdf", getDownloadFilename(pdfji), request, response, logger);
                     return;
                 } catch (Exception e) {
                     // sending didn't work
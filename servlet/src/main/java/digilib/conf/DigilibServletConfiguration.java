@@ -45,12 +45,18 @@ import org.xml.sax.SAXException;
 import digilib.auth.AuthOps;
 import digilib.auth.AuthOpsFactory;
 import digilib.image.DocuImage;
+import digilib.image.ImageBufferPool;
+import digilib.image.ImageCache;
+import digilib.image.StripeExecutor;
 import digilib.io.AliasingDocuDirCache;
+import digilib.io.BaseDirDocuDirectory;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.DocuDirectoryFactory;
 import digilib.io.FileOps;
 import digilib.io.FileOps.FileClass;
+import digilib.io.ImageIdentifier;
+import digilib.io.ImageIndex;
 import digilib.meta.DirMeta;
 import digilib.meta.FileMeta;
 import digilib.meta.MetaFactory;
@@ -84,6 +90,10 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
 
     public static final String DIR_CACHE_KEY = "servlet.dir.cache";
 
+    public static final String IMAGE_CACHE_KEY = "servlet.image.cache";
+
+    public static final String CACHE_CONTROL_KEY = "servlet.cache.control";
+
     /** the time the webapp (i.e. this class) was loaded */
     public final Long webappStartTime = System.currentTimeMillis();
 
@@ -116,6 +126,10 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter(IMAGEEXECUTOR_KEY, null, null, 's');
         // AuthOps instance
         newParameter(AUTH_OP_KEY, null, null, 's');
+        // ImageCache instance
+        newParameter(IMAGE_CACHE_KEY, null, null, 's');
+        // Cache-Control policies by base directory
+        newParameter(CACHE_CONTROL_KEY, null, null, 's');
         // classes TODO: do we need these as parameters?
         newParameter("servlet.filemeta.class", null, null, 's');
         newParameter("servlet.dirmeta.class", null, null, 's');
@@ -152,14 +166,62 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("worker-threads", new Integer(2), null, 'f');
         // max number of waiting threads
         newParameter("max-waiting-threads", new Integer(20), null, 'f');
+        // share jobs between identical requests
+        newParameter("worker-coalesce-jobs", Boolean.TRUE, null, 'f');
+        // number of threads for parallel pixel operations (0 or 1 means not parallel)
+        newParameter("pixel-op-threads", new Integer(Runtime.getRuntime().availableProcessors()), null, 'f');
+        // minimum image size for parallel pixel operations (pixels)
+        newParameter("pixel-op-min-pixels", new Integer(4000000), null, 'f');
+        // size of the pool of image buffers (MB, 0 means no pool)
+        newParameter("image-buffer-pool-size", new Integer(64), null, 'f');
         // FileMeta implementation
         newParameter("filemeta-class", "digilib.meta.IndexMetaFileMeta", null, 'f');
         // DirMeta implementation
         newParameter("dirmeta-class", "digilib.meta.IndexMetaDirMeta", null, 'f');
         // AuthOps implementation
         newParameter("authops-class", "digilib.auth.PathServletAuthOps", null, 'f');
-        // DocuDirectory implementation
+        // DocuDirectory implementation (digilib.io.CompactDocuDirectory for huge directories)
         newParameter("docudirectory-class", "digilib.io.BaseDirDocuDirectory", null, 'f');
+        // size of the memory cache for rendered images (MB, 0 means no cache)
+        newParameter("image-cache-mem-size", new Integer(0), null, 'f');
+        // directory of the disk cache for rendered images (empty means no disk cache)
+        newParameter("image-cache-dir", "", null, 'f');
+        // size of the disk cache for rendered images (MB)
+        newParameter("image-cache-disk-size", new Integer(1024), null, 'f');
+        // directory of the persistent index of image sizes and types (empty means no index)
+        newParameter("image-index-dir", "", null, 'f');
+        // number of threads to identify the images of a directory in the background (0 means off)
+        newParameter("identify-threads", new Integer(0), null, 'f');
+        // max number of waiting background identification jobs
+        newParameter("max-waiting-identify-jobs", new Integer(100), null, 'f');
+        // how to detect changes of cached directories: none (check on every request), watch or poll
+        newParameter("dir-cache-watch", "none", null, 'f');
+        // polling interval for dir-cache-watch=poll (s)
+        newParameter("dir-cache-poll-interval", new Integer(10), null, 'f');
+        // maximum number of directories in the directory cache (0 means no limit)
+        newParameter("dir-cache-max-dirs", new Integer(0), null, 'f');
+        // maximum number of files in the directory cache (0 means no limit)
+        newParameter("dir-cache-max-files", new Integer(0), null, 'f');
+        // time to remember paths that do not exist (s) (0 means off)
+        newParameter("dir-cache-negative-ttl", new Integer(60), null, 'f');
+        // maximum number of remembered paths that do not exist
+        newParameter("dir-cache-negative-size", new Integer(10000), null, 'f');
+        // file for snapshots of the directory cache (empty means no snapshots)
+        newParameter("dir-cache-snapshot-file", "", null, 'f');
+        // interval for writing snapshots of the directory cache (s)
+        newParameter("dir-cache-snapshot-interval", new Integer(600), null, 'f');
+        // minimum time between checks of a cached directory for changes (ms)
+        newParameter("dir-cache-revalidate-interval", new Integer(0), null, 'f');
+        // number of threads to reread changed directories in the background (0 means reread while waiting)
+        newParameter("dir-refresh-threads", new Integer(1), null, 'f');
+        // number of threads to read the scaled directories of a directory in parallel (0 means sequential)
+        newParameter("dir-read-threads", new Integer(4), null, 'f');
+        // Cache-Control headers for images from each base directory, separated by "|" (empty means no header)
+        newParameter("cache-control-list", "", null, 'f');
+        // send files by the front proxy: "none", "x-accel-redirect" or "x-sendfile"
+        newParameter("sendfile-offload", "none", null, 'f');
+        // local path prefixes and internal URI prefixes for the front proxy ("/local/path=/internal/uri", separated by "|")
+        newParameter("sendfile-offload-mapping", "", null, 'f');
 
     }
 
@@ -322,6 +384,15 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         // say hello in the log file
         logger.info("***** Digital Image Library Configuration (version " + getVersion() + ") *****");
         try {
+            // rereading of changed directories
+            DocuDirectory.setRevalidation(config.getAsInt("dir-cache-revalidate-interval"), config.getAsInt("dir-refresh-threads"));
+            // parallel reading of scaled directories
+            BaseDirDocuDirectory.setScaledDirThreads(config.getAsInt("dir-read-threads"));
+            // snapshot file of the directory cache
+            String dsf = config.getAsString("dir-cache-snapshot-file");
+            if (dsf.length() > 0) {
+                config.setValue("dir-cache-snapshot-file", ServletOps.getFile(dsf, context));
+            }
             // directory cache
             DocuDirCache dirCache;
             if (config.getAsBoolean("use-mapping")) {
@@ -350,6 +421,40 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
             int mt = config.getAsInt("max-waiting-threads");
             DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false, IMAGEEXECUTOR_KEY);
             config.setValue(IMAGEEXECUTOR_KEY, imageExecutor);
+            // parallel pixel operations
+            StripeExecutor.setup(config.getAsInt("pixel-op-threads"), config.getAsInt("pixel-op-min-pixels"), imageExecutor);
+            // pool of image buffers
+            ImageBufferPool.setMaxSize(config.getAsInt("image-buffer-pool-size") * 1024L * 1024L);
+            // cache for rendered images
+            int cms = config.getAsInt("image-cache-mem-size");
+            String cdn = config.getAsString("image-cache-dir");
+            if (cms > 0 || cdn.length() > 0) {
+                File cacheDir = null;
+                if (cdn.length() > 0) {
+                    cacheDir = new File(ServletOps.getFile(cdn, context));
+                }
+                long cds = config.getAsInt("image-cache-disk-size");
+                ImageCache imageCache = new ImageCache(cms * 1024L * 1024L, cacheDir, cds * 1024L * 1024L);
+                config.setValue(IMAGE_CACHE_KEY, imageCache);
+            }
+            // persistent index of image sizes and types
+            String idn = config.getAsString("image-index-dir");
+            if (idn.length() > 0) {
+                ImageIndex.setIndexDir(new File(ServletOps.getFile(idn, context)));
+            }
+            // background identification of images
+            ImageIdentifier.setup(config.getAsInt("identify-threads"), config.getAsInt("max-waiting-identify-jobs"), imageExecutor);
+            // sending files by the front proxy
+            ServletOps.setSendFileOffload(config.getAsString("sendfile-offload"), config.getAsString("sendfile-offload-mapping"));
+            // Cache-Control policies
+            String ccl = config.getAsString("cache-control-list");
+            if (ccl.length() > 0) {
+                String[] policies = ccl.split("\\|");
+                for (int i = 0; i < policies.length; ++i) {
+                    policies[i] = policies[i].trim();
+                }
+                config.setValue(CACHE_CONTROL_KEY, policies);
+            }
             /*
              * set as the servlets main config
              */
@@ -400,6 +505,21 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 logger.error("Still running threads when shutting down image job queue: " + nrj);
             }
         }
+        // shut down pixel operation thread pool
+        StripeExecutor.shutdown();
+        // free pooled image buffers
+        ImageBufferPool.setMaxSize(0);
+        // stop background identification
+        ImageIdentifier.shutdown();
+        // stop watching directories
+        DocuDirCache dirCache = (DocuDirCache) config.getValue(DIR_CACHE_KEY);
+        if (dirCache != null) {
+            dirCache.shutdown();
+        }
+        DocuDirectory.setRevalidation(0, 0);
+        BaseDirDocuDirectory.setScaledDirThreads(0);
+        // save image indexes
+        ImageIndex.saveAll();
     }
 
 
@@ -31,7 +31,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import javax.servlet.ServletContext;
@@ -41,9 +46,15 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import digilib.conf.DigilibConfiguration;
+import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.EncodedImage;
 import digilib.image.ImageOpException;
+import digilib.io.DocuDirCache;
+import digilib.io.DocuDirectory;
+import digilib.io.DocuDirent;
 import digilib.io.FileOpException;
 import digilib.io.FileOps;
 import digilib.io.ImageInput;
@@ -54,6 +65,24 @@ public class ServletOps {
 
     private static Logger logger = Logger.getLogger("servlet.op");
 
+    /** request attributes for Tomcat sendfile */
+    public static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /** maximum number of ranges in a request (more are ignored) */
+    protected static final int MAX_RANGES = 20;
+
+    /** size of the buffer for copying files */
+    protected static final int SENDFILE_BUFFER_SIZE = 64 * 1024;
+
+    /** header for sending files by the front proxy (null means off) */
+    protected static String offloadHeader = null;
+
+    /** local path prefixes and internal URI prefixes for the front proxy */
+    protected static String[][] offloadMappings = new String[0][];
+
     /**
      * convert a string with a list of pathnames into an array of strings using
      * the system's path separator string
@@ -241,6 +270,45 @@ public class ServletOps {
      */
     public static void sendFile(File f, String mt, String name, HttpServletResponse response, Logger logger)
             throws ImageOpException, IOException {
+        ServletOps.sendFile(f, mt, name, null, response, logger);
+    }
+
+    /**
+     * Transfers an image file as-is with the mime type mt.
+     * 
+     * If the container supports it (Tomcat sendfile) the file is sent by the 
+     * container after the request has been processed without copying it 
+     * through the JVM. Otherwise the local file is copied to the 
+     * <code>OutputStream</code> of the <code>ServletResponse</code>. 
+     * If mt is null then the mime-type is auto-detected with mimeForFile.
+     * 
+     * If the request is given, ETag and Last-Modified are sent, conditional 
+     * requests (If-None-Match, If-Modified-Since) are answered with 304 and 
+     * Range requests (also with If-Range and multiple ranges) with 206. 
+     * Without a request (e.g. for error images) no validators are sent.
+     * 
+     * If the request is given and sending by the front proxy is configured
+     * (see setSendFileOffload) only the X-Accel-Redirect or X-Sendfile 
+     * header is sent.
+     * 
+     * @param f
+     *            Image file to be sent.
+     * @param mt
+     *            mime-type of the file.
+     * @param name 
+     *            name of the download file (for application/x)
+     * @param request
+     *            ServletRequest (may be null)
+     * @param res
+     *            ServletResponse where the image file will be sent.
+     * @param logger
+     *            Logger to use
+     * @throws ImageOpException
+     * @throws ServletException Exception on sending data.
+     * @throws IOException 
+     */
+    public static void sendFile(File f, String mt, String name, HttpServletRequest request,
+            HttpServletResponse response, Logger logger) throws ImageOpException, IOException {
         logger.debug("sendRawFile(" + mt + ", " + f + ")");
     	if (response == null) {
     		logger.error("No response!");
@@ -262,19 +330,68 @@ public class ServletOps {
             }
             response.addHeader("Content-Disposition", "attachment; filename=\""+name+"\"");
         }
+        if (request != null && offloadHeader != null) {
+            String uri = getOffloadUri(f);
+            if (uri != null) {
+                // let the front proxy send the file
+                logger.debug("sendRawFile using " + offloadHeader + ": " + uri);
+                response.setHeader(offloadHeader, uri);
+                return;
+            }
+        }
+        long length = f.length();
+        long mtime = f.lastModified();
+        String etag = getFileETag(f, length, mtime);
+        List<long[]> ranges = null;
+        if (request != null) {
+            // validators only for requests that can use them
+            response.setHeader("ETag", etag);
+            response.setDateHeader("Last-Modified", mtime);
+            response.setHeader("Accept-Ranges", "bytes");
+            if (isNotModified(request, etag, mtime)) {
+                logger.debug("sendRawFile: not modified");
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            ranges = getRanges(request, etag, mtime, length);
+            if (ranges != null && ranges.isEmpty()) {
+                logger.debug("sendRawFile: range not satisfiable");
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setContentLength(0);
+                return;
+            }
+        }
         FileInputStream inFile = null;
         try {
             inFile = new FileInputStream(f);
-            OutputStream outStream = response.getOutputStream();
+            FileChannel inChannel = inFile.getChannel();
+            if (ranges != null && ranges.size() > 1) {
+                // multiple ranges
+                sendRanges(inChannel, mt, length, ranges, response);
+                return;
+            }
+            long start = 0;
+            long end = length;
+            if (ranges != null) {
+                // single range
+                start = ranges.get(0)[0];
+                end = ranges.get(0)[1] + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
             // TODO: should we set content length? 
             // see http://www.prozesse-und-systeme.de/servletFlush.html
-            response.setContentLength( (int) f.length());
-            byte dataBuffer[] = new byte[4096];
-            int len;
-            while ((len = inFile.read(dataBuffer)) != -1) {
-                // copy out file
-                outStream.write(dataBuffer, 0, len);
+            setContentLength(response, end - start);
+            if (request != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+                // let the container send the file
+                request.setAttribute(SENDFILE_FILENAME_ATTR, f.getCanonicalPath());
+                request.setAttribute(SENDFILE_START_ATTR, Long.valueOf(start));
+                request.setAttribute(SENDFILE_END_ATTR, Long.valueOf(end));
+                logger.debug("sendRawFile using container sendfile");
+                return;
             }
+            copyRange(inChannel, start, end, response.getOutputStream(), new byte[SENDFILE_BUFFER_SIZE]);
         } finally {
             try {
                 if (inFile != null) {
@@ -286,6 +403,385 @@ public class ServletOps {
         }
     }
 
+    /**
+     * Configures sending files by the front proxy.
+     * 
+     * Mode "x-accel-redirect" (nginx) sends the internal URI of the file in 
+     * the X-Accel-Redirect header, mode "x-sendfile" (Apache mod_xsendfile, 
+     * lighttpd) sends the path of the file in the X-Sendfile header. Any 
+     * other mode switches it off.
+     * 
+     * The mappings replace local path prefixes with the corresponding 
+     * internal URI prefixes ("/local/path=/internal/uri", separated by "|").
+     * With x-accel-redirect files without mapping are sent by the servlet.
+     * 
+     * @param mode
+     * @param mappings
+     */
+    public static void setSendFileOffload(String mode, String mappings) {
+        List<String[]> ml = new ArrayList<String[]>();
+        if (mappings != null) {
+            for (String m : mappings.split("\\|")) {
+                int eq = m.indexOf('=');
+                if (eq > 0) {
+                    ml.add(new String[] { stripSlash(m.substring(0, eq).trim()), stripSlash(m.substring(eq + 1).trim()) });
+                } else if (m.trim().length() > 0) {
+                    logger.warn("Invalid sendfile offload mapping: " + m);
+                }
+            }
+        }
+        offloadMappings = ml.toArray(new String[ml.size()][]);
+        if ("x-accel-redirect".equals(mode)) {
+            offloadHeader = "X-Accel-Redirect";
+        } else if ("x-sendfile".equals(mode)) {
+            offloadHeader = "X-Sendfile";
+        } else {
+            offloadHeader = null;
+        }
+    }
+
+    private static String stripSlash(String path) {
+        return (path.length() > 1 && path.endsWith("/")) ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /**
+     * Returns the URI for sending the file by the front proxy (or null if
+     * the file can not be sent by the front proxy).
+     * 
+     * @param f
+     * @return
+     */
+    protected static String getOffloadUri(File f) {
+        String path = f.getAbsolutePath();
+        String uri = null;
+        for (String[] m : offloadMappings) {
+            String prefix = m[0];
+            if (path.startsWith(prefix + File.separator)) {
+                uri = m[1] + path.substring(prefix.length()).replace(File.separatorChar, '/');
+                break;
+            }
+        }
+        if (uri == null) {
+            if (!"X-Sendfile".equals(offloadHeader)) {
+                return null;
+            }
+            uri = path;
+        }
+        return encodePath(uri);
+    }
+
+    /**
+     * Returns the path with all characters except unreserved characters 
+     * and "/" %-encoded (as UTF-8).
+     * 
+     * @param path
+     * @return
+     */
+    protected static String encodePath(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        byte[] bytes;
+        try {
+            bytes = path.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/'
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append((char) c);
+            } else {
+                sb.append('%');
+                sb.append(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+                sb.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the ETag of the file built from its path, length and 
+     * modification time.
+     * 
+     * @param f
+     * @param length
+     * @param mtime
+     * @return
+     */
+    public static String getFileETag(File f, long length, long mtime) {
+        return "\"" + Integer.toHexString(f.getPath().hashCode()) + "-" + Long.toHexString(length) + "-"
+                + Long.toHexString(mtime) + "\"";
+    }
+
+    /**
+     * Returns if the client has the current version according to the 
+     * If-None-Match or If-Modified-Since headers of the GET or HEAD request.
+     * 
+     * @param request
+     * @param etag
+     * @param mtime
+     * @return
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, long mtime) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null) {
+            // If-None-Match overrides If-Modified-Since
+            if (etag == null) {
+                return false;
+            }
+            String tag = stripWeakETag(etag);
+            for (String t : inm.split(",")) {
+                t = t.trim();
+                if (t.equals("*") || stripWeakETag(t).equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (mtime > 0) {
+            try {
+                long ims = request.getDateHeader("If-Modified-Since");
+                // HTTP dates have seconds resolution
+                return (ims != -1 && mtime / 1000 * 1000 <= ims);
+            } catch (IllegalArgumentException e) {
+                // ignore invalid date
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakETag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Returns the byte ranges (first and last byte) of the Range header of 
+     * the GET request.
+     * 
+     * Returns null if the whole file should be sent (no or invalid Range 
+     * header, If-Range does not match) and an empty list if no range is 
+     * satisfiable.
+     * 
+     * @param request
+     * @param etag
+     * @param mtime
+     * @param length
+     * @return
+     */
+    public static List<long[]> getRanges(HttpServletRequest request, String etag, long mtime, long length) {
+        String rh = request.getHeader("Range");
+        if (rh == null || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        rh = rh.trim();
+        if (!rh.startsWith("bytes=")) {
+            return null;
+        }
+        String ir = request.getHeader("If-Range");
+        if (ir != null) {
+            ir = ir.trim();
+            if (ir.startsWith("\"") || ir.startsWith("W/")) {
+                // strong comparison
+                if (!ir.equals(etag)) {
+                    return null;
+                }
+            } else {
+                try {
+                    if (request.getDateHeader("If-Range") != mtime / 1000 * 1000) {
+                        return null;
+                    }
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        String[] specs = rh.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long start;
+                long end;
+                if (dash == 0) {
+                    // suffix range
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0 || length == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < start) {
+                            return null;
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                    if (start >= length) {
+                        continue;
+                    }
+                }
+                ranges.add(new long[] { start, end });
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Sends the ranges of the file as multipart/byteranges.
+     * 
+     * @param inChannel
+     * @param mt
+     * @param length
+     * @param ranges
+     * @param response
+     * @throws IOException
+     */
+    protected static void sendRanges(FileChannel inChannel, String mt, long length, List<long[]> ranges,
+            HttpServletResponse response) throws IOException {
+        String boundary = "DIGILIB_" + Long.toHexString(System.nanoTime());
+        String[] headers = new String[ranges.size()];
+        long total = 0;
+        for (int i = 0; i < headers.length; ++i) {
+            long[] r = ranges.get(i);
+            headers[i] = "\r\n--" + boundary + "\r\nContent-Type: " + mt + "\r\nContent-Range: bytes " + r[0] + "-"
+                    + r[1] + "/" + length + "\r\n\r\n";
+            total += headers[i].length() + r[1] - r[0] + 1;
+        }
+        String trailer = "\r\n--" + boundary + "--\r\n";
+        total += trailer.length();
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        setContentLength(response, total);
+        OutputStream outStream = response.getOutputStream();
+        byte[] buffer = new byte[SENDFILE_BUFFER_SIZE];
+        for (int i = 0; i < headers.length; ++i) {
+            long[] r = ranges.get(i);
+            outStream.write(headers[i].getBytes("US-ASCII"));
+            copyRange(inChannel, r[0], r[1] + 1, outStream, buffer);
+        }
+        outStream.write(trailer.getBytes("US-ASCII"));
+    }
+
+    /**
+     * Copies the bytes from start to end (exclusive) of the file to the 
+     * OutputStream.
+     * 
+     * @param inChannel
+     * @param start
+     * @param end
+     * @param outStream
+     * @param buffer
+     * @throws IOException
+     */
+    protected static void copyRange(FileChannel inChannel, long start, long end, OutputStream outStream,
+            byte[] buffer) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long pos = start;
+        while (pos < end) {
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, end - pos));
+            int len = inChannel.read(bb, pos);
+            if (len < 0) {
+                // file is shorter than expected
+                break;
+            }
+            // copy out file
+            outStream.write(buffer, 0, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Returns the modification time of the image of the request: the latest
+     * of the directory and the files of all resolutions (or -1).
+     * 
+     * @param dirCache
+     * @param dlReq
+     * @return
+     */
+    public static long getImageLastModified(DocuDirCache dirCache, DigilibServletRequest dlReq) {
+        long mtime = -1;
+        DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
+        if (dd != null) {
+            mtime = dd.getDirMTime();
+        }
+        DocuDirent f = dirCache.getFile(dlReq.getFilePath(), dlReq.getAsInt("pn"));
+        if (f instanceof ImageSet) {
+            ImageSet is = (ImageSet) f;
+            for (int i = 0; i < is.size(); ++i) {
+                ImageInput ii = is.get(i);
+                if (ii.hasFile()) {
+                    mtime = Math.max(mtime, ii.getFile().lastModified());
+                }
+            }
+        }
+        // HTTP dates have seconds resolution
+        return (mtime > 0) ? mtime / 1000 * 1000 : -1;
+    }
+
+    /**
+     * Returns the Cache-Control policy for images from the base directory 
+     * of the input (or null).
+     * 
+     * The policies are configured in cache-control-list in the order of 
+     * basedir-list. The last policy applies to the remaining base 
+     * directories.
+     * 
+     * @param dlConfig
+     * @param input
+     * @return
+     */
+    public static String getCacheControl(DigilibConfiguration dlConfig, ImageInput input) {
+        String[] policies = (String[]) dlConfig.getValue(DigilibServletConfiguration.CACHE_CONTROL_KEY);
+        if (policies == null || input == null || !input.hasFile()) {
+            return null;
+        }
+        String fn = input.getFile().getPath();
+        String[] baseDirs = (String[]) dlConfig.getValue("basedir-list");
+        for (int i = 0; i < baseDirs.length; ++i) {
+            if (fn.startsWith(baseDirs[i] + File.separator)) {
+                String cc = policies[Math.min(i, policies.length - 1)];
+                return (cc.length() > 0) ? cc : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the content length of the response (also for files larger 
+     * than 2GB).
+     * 
+     * @param response
+     * @param length
+     */
+    public static void setContentLength(HttpServletResponse response, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            // setContentLengthLong needs Servlet 3.1
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+    }
+
     /**
      * Write image img to ServletResponse response.
      * 
@@ -364,6 +860,31 @@ public class ServletOps {
     	}
     }
 
+    /**
+     * Write encoded image img to ServletResponse response.
+     *
+     * @param img
+     * @param response
+     * @param logger
+     * @throws ServletException Exception on sending data.
+     */
+    public static void sendImage(EncodedImage img, HttpServletResponse response, Logger logger)
+            throws ServletException {
+        if (response == null) {
+            logger.error("No response!");
+            return;
+        }
+        logger.debug("sending encoded image to response. committed=" + response.isCommitted());
+        try {
+            response.setContentType(img.getMimeType());
+            response.setContentLength(img.getLength());
+            OutputStream outstream = response.getOutputStream();
+            outstream.write(img.getData());
+        } catch (IOException e) {
+            throw new ServletException("Error sending image:", e);
+        }
+    }
+
 
     /**
      * Returns IIIF compatible image information as application/json response.
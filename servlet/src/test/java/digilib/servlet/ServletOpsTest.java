@@ -0,0 +1,176 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * ServletOpsTest -- tests for the Range and ETag handling of ServletOps
+ * 
+ * Digital Image Library servlet components
+ * 
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * ServletOpsTest -- tests for the Range and ETag handling of ServletOps
+ * 
+ * @author casties
+ *
+ */
+public class ServletOpsTest {
+
+    protected static final String ETAG = "\"abc-64-1\"";
+
+    protected static final long MTIME = 1475000000123L;
+
+    protected static final long LENGTH = 1000;
+
+    /**
+     * Returns a request with the method and headers. Date headers are
+     * given as Long values.
+     */
+    protected static HttpServletRequest createRequest(final String method, final Object... headers) {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put((String) headers[i], headers[i + 1]);
+        }
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletOpsTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("getMethod")) {
+                            return method;
+                        }
+                        Object val = map.get(args[0]);
+                        if (name.equals("getHeader")) {
+                            return (val != null) ? val.toString() : null;
+                        }
+                        if (name.equals("getDateHeader")) {
+                            if (val == null) {
+                                return -1L;
+                            }
+                            if (val instanceof Long) {
+                                return val;
+                            }
+                            throw new IllegalArgumentException("not a date: " + val);
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    protected static List<long[]> getRanges(HttpServletRequest request) {
+        return ServletOps.getRanges(request, ETAG, MTIME, LENGTH);
+    }
+
+    @Test
+    public void testNoRange() {
+        assertNull(getRanges(createRequest("GET")));
+        assertNull(getRanges(createRequest("HEAD", "Range", "bytes=0-10")));
+        assertNull(getRanges(createRequest("GET", "Range", "lines=0-10")));
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=10-5")));
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=a-b")));
+    }
+
+    @Test
+    public void testRanges() {
+        List<long[]> r = getRanges(createRequest("GET", "Range", "bytes=0-99"));
+        assertEquals(1, r.size());
+        assertArrayEquals(new long[] { 0, 99 }, r.get(0));
+        // open and clamped ranges
+        r = getRanges(createRequest("GET", "Range", "bytes=900-, 990-2000"));
+        assertEquals(2, r.size());
+        assertArrayEquals(new long[] { 900, 999 }, r.get(0));
+        assertArrayEquals(new long[] { 990, 999 }, r.get(1));
+        // suffix ranges
+        r = getRanges(createRequest("GET", "Range", "bytes=-100,-5000"));
+        assertEquals(2, r.size());
+        assertArrayEquals(new long[] { 900, 999 }, r.get(0));
+        assertArrayEquals(new long[] { 0, 999 }, r.get(1));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        List<long[]> r = getRanges(createRequest("GET", "Range", "bytes=1000-1100,-0"));
+        assertNotNull(r);
+        assertTrue("unsatisfiable", r.isEmpty());
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        StringBuilder sb = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ServletOps.MAX_RANGES; ++i) {
+            sb.append(",").append(i).append("-").append(i);
+        }
+        assertNull(getRanges(createRequest("GET", "Range", sb.toString())));
+    }
+
+    @Test
+    public void testIfRange() {
+        assertNotNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", ETAG)));
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", "\"other\"")));
+        // weak tags never match
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", "W/" + ETAG)));
+        // dates have seconds resolution
+        assertNotNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", MTIME / 1000 * 1000)));
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", MTIME - 10000)));
+        assertNull(getRanges(createRequest("GET", "Range", "bytes=0-9", "If-Range", "yesterday")));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        assertTrue(ServletOps.isNotModified(createRequest("GET", "If-None-Match", ETAG), ETAG, MTIME));
+        assertTrue(ServletOps.isNotModified(createRequest("GET", "If-None-Match", "\"x\", W/" + ETAG), ETAG, MTIME));
+        assertTrue(ServletOps.isNotModified(createRequest("HEAD", "If-None-Match", "*"), ETAG, MTIME));
+        assertFalse(ServletOps.isNotModified(createRequest("GET", "If-None-Match", "\"x\""), ETAG, MTIME));
+        assertFalse(ServletOps.isNotModified(createRequest("POST", "If-None-Match", ETAG), ETAG, MTIME));
+        // If-None-Match overrides If-Modified-Since
+        assertFalse(ServletOps.isNotModified(
+                createRequest("GET", "If-None-Match", "\"x\"", "If-Modified-Since", MTIME), ETAG, MTIME));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        assertTrue(ServletOps.isNotModified(createRequest("GET", "If-Modified-Since", MTIME / 1000 * 1000), ETAG,
+                MTIME));
+        assertFalse(ServletOps.isNotModified(createRequest("GET", "If-Modified-Since", MTIME - 10000), ETAG, MTIME));
+        assertFalse(ServletOps.isNotModified(createRequest("GET"), ETAG, MTIME));
+        assertFalse(ServletOps.isNotModified(createRequest("GET", "If-Modified-Since", "yesterday"), ETAG, MTIME));
+    }
+
+}
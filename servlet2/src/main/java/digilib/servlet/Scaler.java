@@ -44,11 +44,13 @@ import digilib.auth.AuthOps;
 import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.EncodedImage;
+import digilib.image.EncodingImageWorker;
+import digilib.image.ImageCache;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
 
@@ -88,6 +90,12 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** cache for rendered images */
+    protected ImageCache imageCache;
+
+    /** share jobs between identical requests */
+    protected boolean coalesceJobs = true;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -146,6 +154,10 @@ public class Scaler extends HttpServlet {
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
 
+        // cache for rendered images
+        imageCache = (ImageCache) dlConfig.getValue("servlet.image.cache");
+        coalesceJobs = dlConfig.getAsBoolean("worker-coalesce-jobs");
+
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
         notfoundImgFile = ServletOps.getFile(dlConfig.getAsFile("notfound-image"), context);
@@ -162,10 +174,7 @@ public class Scaler extends HttpServlet {
         long mtime = -1;
         // create new request
         DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-        DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-        if (dd != null) {
-            mtime = dd.getDirMTime() / 1000 * 1000;
-        }
+        mtime = ServletOps.getImageLastModified(dirCache, dlReq);
         logger.debug("  returns " + mtime);
         return mtime;
     }
@@ -251,6 +260,12 @@ public class Scaler extends HttpServlet {
                 }
             }
 
+            // set caching policy for the base directory of the image
+            String cacheControl = ServletOps.getCacheControl(dlConfig, fileToLoad);
+            if (cacheControl != null) {
+                response.setHeader("Cache-Control", cacheControl);
+            }
+
             // if requested, send image as a file
             if (sendFileAllowed && jobTicket.getSendAsFile()) {
                 String mt = null;
@@ -258,7 +273,7 @@ public class Scaler extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -267,32 +282,80 @@ public class Scaler extends HttpServlet {
             // it
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // send 304 if the client has the image already
+            String etag = jobTicket.getETag();
+            if (ServletOps.isNotModified(request, etag, -1)) {
+                logger.debug("Image not modified.");
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            // if possible, send the image from the cache
+            if (imageCache != null) {
+                EncodedImage img = imageCache.get(jobTicket.getCanonicalKey(), jobTicket.getSourceMTime());
+                if (img != null) {
+                    logger.debug("Sending cached image.");
+                    response.setHeader("ETag", etag);
+                    ServletOps.sendImage(img, response, logger);
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+
             // check load of workers
             if (imageJobCenter.isBusy()) {
                 logger.error("Servlet overloaded!");
                 response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                 return;
             }
-            // create job
-            ImageWorker job = new ImageWorker(dlConfig, jobTicket);
-            // submit job
-            Future<DocuImage> jobResult = imageJobCenter.submit(job);
-            // wait for result
-            DocuImage img = jobResult.get();
-            // forced destination image type
-            String mt = null;
-            if (jobTicket.hasOption("jpg")) {
-                mt = "image/jpeg";
-            } else if (jobTicket.hasOption("png")) {
-                mt = "image/png";
+            if (coalesceJobs) {
+                // create job that encodes the image (and puts it in the cache)
+                EncodingImageWorker job = new EncodingImageWorker(dlConfig, jobTicket, imageCache);
+                // submit job or share job of identical request in progress
+                Future<EncodedImage> jobResult = imageJobCenter.submitShared(jobTicket.getCanonicalKey(), job);
+                // wait for result
+                EncodedImage img = jobResult.get();
+                if (img == null) {
+                    // job was stopped
+                    logger.error("No image rendered!");
+                    digilibError(errMsgType, Error.IMAGE, null, response);
+                    return;
+                }
+                // send image
+                response.setHeader("ETag", etag);
+                ServletOps.sendImage(img, response, logger);
+            } else {
+                // create job
+                ImageWorker job = new ImageWorker(dlConfig, jobTicket);
+                // submit job
+                Future<DocuImage> jobResult = imageJobCenter.submit(job);
+                // wait for result
+                DocuImage img = jobResult.get();
+                // forced destination image type
+                String mt = null;
+                if (jobTicket.hasOption("jpg")) {
+                    mt = "image/jpeg";
+                } else if (jobTicket.hasOption("png")) {
+                    mt = "image/png";
+                }
+                // send image
+                if (imageCache != null) {
+                    // encode the image and put it in the cache
+                    EncodedImage eimg = EncodedImage.encode(img, jobTicket.getOutputMimeType(), jobTicket.getSourceMTime());
+                    imageCache.put(jobTicket.getCanonicalKey(), eimg);
+                    response.setHeader("ETag", etag);
+                    ServletOps.sendImage(eimg, response, logger);
+                } else {
+                    response.setHeader("ETag", etag);
+                    ServletOps.sendImage(img, mt, response, logger);
+                }
             }
-            // send image
-            ServletOps.sendImage(img, mt, response, logger);
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
         } catch (ImageOpException e) {
@@ -351,6 +414,9 @@ public class Scaler extends HttpServlet {
                 logger.error("Unable to send error: " + msg);
                 return;
             }
+            // don't cache or revalidate errors: drop the validators of the image
+            response.reset();
+            response.setHeader("Cache-Control", "no-store");
             if (type == ErrMsg.TEXT) {
                 ServletOps.htmlMessage(msg, response);
             } else if (type == ErrMsg.CODE) {
@@ -44,7 +44,6 @@ import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 
 /**
@@ -145,10 +144,7 @@ public class ScalerNoThread extends HttpServlet {
         long mtime = -1;
         // create new request
         DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-        DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-        if (dd != null) {
-            mtime = dd.getDirMTime() / 1000 * 1000;
-        }
+        mtime = ServletOps.getImageLastModified(dirCache, dlReq);
         logger.debug("  returns " + mtime);
         return mtime;
     }
@@ -233,6 +229,12 @@ public class ScalerNoThread extends HttpServlet {
                 }
             }
 
+            // set caching policy for the base directory of the image
+            String cacheControl = ServletOps.getCacheControl(dlConfig, fileToLoad);
+            if (cacheControl != null) {
+                response.setHeader("Cache-Control", cacheControl);
+            }
+
             // if requested, send image as a file
             if (sendFileAllowed && jobTicket.getSendAsFile()) {
                 String mt = null;
@@ -240,7 +242,7 @@ public class ScalerNoThread extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -249,11 +251,20 @@ public class ScalerNoThread extends HttpServlet {
             // it
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // send 304 if the client has the image already
+            String etag = jobTicket.getETag();
+            if (ServletOps.isNotModified(request, etag, -1)) {
+                logger.debug("Image not modified.");
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
             // create job
             ImageWorker job = new ImageWorker(dlConfig, jobTicket);
             // get result immediately
@@ -266,6 +277,7 @@ public class ScalerNoThread extends HttpServlet {
                 mt = "image/png";
             }
             // send image
+            response.setHeader("ETag", etag);
             ServletOps.sendImage(img, mt, response, logger);
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
@@ -318,6 +330,9 @@ public class ScalerNoThread extends HttpServlet {
                 logger.error("Unable to send error: " + msg);
                 return;
             }
+            // don't cache or revalidate errors: drop the validators of the image
+            response.reset();
+            response.setHeader("Cache-Control", "no-store");
             if (type == ErrMsg.TEXT) {
                 ServletOps.htmlMessage(msg, response);
             } else if (type == ErrMsg.CODE) {
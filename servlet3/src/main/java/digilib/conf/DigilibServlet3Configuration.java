@@ -27,6 +27,7 @@ package digilib.conf;
  */
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
 import javax.servlet.annotation.WebListener;
 
 import digilib.servlet.AsyncServletWorker;
@@ -59,6 +60,10 @@ public class DigilibServlet3Configuration extends DigilibServletConfiguration {
         
         // timeout for worker threads (ms)
         newParameter("worker-timeout", new Integer(60000), null, 'f');
+        // additional time for writing the image to the client (ms)
+        newParameter("worker-write-timeout", new Integer(60000), null, 'f');
+        // write images with non-blocking output (if the container supports Servlet 3.1)
+        newParameter("worker-nonblocking-output", Boolean.TRUE, null, 'f');
     }
 
     /* (non-Javadoc)
@@ -74,6 +79,19 @@ public class DigilibServlet3Configuration extends DigilibServletConfiguration {
         // digilib worker timeout
         long to = getAsInt("worker-timeout");
         AsyncServletWorker.setTimeout(to);
+        AsyncServletWorker.setWriteTimeout(getAsInt("worker-write-timeout"));
+        // non-blocking output
+        AsyncServletWorker.setNonBlocking(getAsBoolean("worker-nonblocking-output"));
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.conf.DigilibServletConfiguration#contextDestroyed(javax.servlet.ServletContextEvent)
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent cte) {
+        super.contextDestroyed(cte);
+        // stop the render timeout timer
+        AsyncServletWorker.shutdown();
     }
 
 }
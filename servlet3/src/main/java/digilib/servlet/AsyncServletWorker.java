@@ -28,17 +28,27 @@ package digilib.servlet;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.image.DocuImage;
+import digilib.image.EncodedImage;
+import digilib.image.ImageCache;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
@@ -48,25 +58,191 @@ import digilib.servlet.Scaler.Error;
 /**
  * Worker class for the asynchronous Servlet API.
  * 
+ * The worker renders the image once and sends it to all requests that are 
+ * waiting for it. Requests for the same image can be added with 
+ * shareWith() as long as the worker has not started sending the image.
+ * 
+ * With non-blocking output (Servlet 3.1) the worker encodes the image and 
+ * hands it to a NonBlockingImageWriter for each request, so the worker 
+ * thread is free as soon as the image is encoded.
+ * 
+ * Rendering is limited by the timeout (worker-timeout). The AsyncContext 
+ * stays open for the additional writeTimeout so that writing to a slow 
+ * client is not cut off by the render timeout.
+ * 
  * @author casties
  * 
  */
-public class AsyncServletWorker implements Runnable, AsyncListener {
+public class AsyncServletWorker implements Runnable {
+
+    /**
+     * Request waiting for the image. Listens to its AsyncContext.
+     */
+    protected static class WaitingRequest implements AsyncListener {
+        /** the AsyncServlet context */
+        protected AsyncContext asyncContext;
+        protected ErrMsg errMsgType;
+        protected long startTime;
+        /** the worker rendering the image for this request */
+        protected AsyncServletWorker worker;
+        /** flag to indicate that the response is completed (on abort) */
+        protected boolean completed = false;
+        /** flag to indicate that the image is written by a NonBlockingImageWriter */
+        protected volatile boolean writing = false;
+        /** flag to indicate that the image has been rendered (no render timeout) */
+        protected boolean rendered = false;
+        /** the task enforcing the render timeout */
+        protected ScheduledFuture<?> renderTimer = null;
+
+        public WaitingRequest(AsyncContext asyncContext, ErrMsg errMsgType, long startTime) {
+            this.asyncContext = asyncContext;
+            this.errMsgType = errMsgType;
+            this.startTime = startTime;
+        }
+
+        /**
+         * Sets the completed flag. Returns false if it was already set.
+         * 
+         * @return
+         */
+        protected synchronized boolean setCompleted() {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            stopRenderTimer();
+            return true;
+        }
+
+        /**
+         * Sets the rendered flag and stops the render timeout. Returns false
+         * if the request is already completed.
+         * 
+         * @return
+         */
+        protected synchronized boolean setRendered() {
+            if (completed) {
+                return false;
+            }
+            rendered = true;
+            stopRenderTimer();
+            return true;
+        }
+
+        protected synchronized void stopRenderTimer() {
+            if (renderTimer != null) {
+                renderTimer.cancel(false);
+                renderTimer = null;
+            }
+        }
+
+        /**
+         * Aborts the request if the image has not been rendered in time.
+         */
+        protected void renderTimedOut() {
+            synchronized (this) {
+                if (completed || rendered) {
+                    return;
+                }
+                completed = true;
+            }
+            logger.error("AsyncServletWorker rendering TIMED OUT after "
+                    + (System.currentTimeMillis() - startTime)
+                    + "ms! (increase worker-timeout?)");
+            Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!", getResponse());
+            asyncContext.complete();
+            worker.requestAborted();
+        }
 
-    /** the AsyncServlet context */
-    private AsyncContext asyncContext = null;
+        protected synchronized boolean isCompleted() {
+            return completed;
+        }
+
+        protected HttpServletResponse getResponse() {
+            return (HttpServletResponse) asyncContext.getResponse();
+        }
+
+        /**
+         * Sends the error to the client and completes the request.
+         * 
+         * @param error
+         * @param msg
+         */
+        protected void abort(Error error, String msg) {
+            if (!setCompleted()) {
+                logger.debug("AsyncServletWorker already completed (abort)!");
+                return;
+            }
+            Scaler.digilibError(errMsgType, error, msg, getResponse());
+            asyncContext.complete();
+        }
+
+        /**
+         * Completes the request.
+         */
+        protected void complete() {
+            if (!setCompleted()) {
+                logger.debug("AsyncServletWorker already completed (finally)!");
+                return;
+            }
+            // submit response
+            logger.debug("context complete.");
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            logger.debug("onStartAsync called (why?)");
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            logger.debug("AsyncServletWorker onComplete");
+            // make sure complete isn't called twice
+            setCompleted();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            logger.error("AsyncServletWorker onError: " + event.toString());
+            abort(Error.UNKNOWN, null);
+            worker.requestAborted();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.error("AsyncServletWorker TIMED OUT after "
+                    + (System.currentTimeMillis() - startTime)
+                    + "ms! (increase worker-timeout or worker-write-timeout?)");
+            if (writing) {
+                // the response has started -- the NonBlockingImageWriter completes it
+                return;
+            }
+            abort(Error.UNKNOWN, "ERROR: timeout rendering image!");
+            worker.requestAborted();
+        }
+    }
+
+    /** the requests waiting for the image */
+    private List<WaitingRequest> requests = new ArrayList<WaitingRequest>(1);
 
     /** the ImageWorker we use */
     private ImageWorker imageWorker = null;
 
     protected static Logger logger = Logger.getLogger(AsyncServletWorker.class);
-    private long startTime;
-    private ErrMsg errMsgType = ErrMsg.IMAGE;
     private ImageJobDescription jobinfo;
-    /** flag to indicate that the response is completed (on abort) */
-    private boolean completed = false;
-    /** AsyncRequest timeout */
+    /** cache for rendered images (may be null) */
+    private ImageCache imageCache = null;
+    /** flag to indicate that no more requests can be added */
+    private boolean closed = false;
+    /** timeout for rendering the image */
     protected static long timeout = 60000l;
+    /** additional time for writing the image (AsyncRequest timeout is timeout + writeTimeout) */
+    protected static long writeTimeout = 60000l;
+    /** timer enforcing the render timeout */
+    protected static ScheduledThreadPoolExecutor renderTimerExecutor = null;
+    /** write images with non-blocking output (needs Servlet 3.1) */
+    protected static boolean nonBlocking = isNonBlockingAvailable();
 
     /**
      * @param dlConfig
@@ -75,19 +251,132 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
     public AsyncServletWorker(DigilibConfiguration dlConfig,
             ImageJobDescription jobinfo, AsyncContext asyncContext,
             ErrMsg errMsgType, long startTime) {
+        this(dlConfig, jobinfo, asyncContext, errMsgType, startTime, null);
+    }
+
+    /**
+     * @param dlConfig
+     * @param jobinfo
+     * @param imageCache
+     *            cache for the rendered image (may be null)
+     */
+    public AsyncServletWorker(DigilibConfiguration dlConfig,
+            ImageJobDescription jobinfo, AsyncContext asyncContext,
+            ErrMsg errMsgType, long startTime, ImageCache imageCache) {
         // set up image worker
         imageWorker = new ImageWorker(dlConfig, jobinfo);
         // save AsyncContext
-        this.asyncContext = asyncContext;
-        asyncContext.setTimeout(AsyncServletWorker.timeout);
-        logger.debug("timeout for worker: " + asyncContext.getTimeout() + "ms");
-        this.startTime = startTime;
-        this.errMsgType = errMsgType;
+        WaitingRequest request = new WaitingRequest(asyncContext, errMsgType, startTime);
+        request.worker = this;
+        requests.add(request);
+        // the AsyncContext has to stay open while the image is written
+        asyncContext.setTimeout(AsyncServletWorker.timeout + AsyncServletWorker.writeTimeout);
+        logger.debug("timeout for worker: " + AsyncServletWorker.timeout + "ms, for request: "
+                + asyncContext.getTimeout() + "ms");
+        request.renderTimer = scheduleRenderTimeout(request);
+        // the WaitingRequest is the AsyncListener
+        asyncContext.addListener(request);
         this.jobinfo = jobinfo;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Adds the requests of the (not submitted) worker job to this worker.
+     * 
+     * Returns false if this worker does not accept more requests because it
+     * has started sending the image or has been stopped.
+     * 
+     * @param job
+     * @return
+     */
+    public synchronized boolean shareWith(AsyncServletWorker job) {
+        if (closed) {
+            return false;
+        }
+        for (WaitingRequest request : job.requests) {
+            request.worker = this;
+            requests.add(request);
+        }
+        job.requests.clear();
+        logger.debug("AsyncServletWorker shared by " + requests.size() + " requests");
+        return true;
+    }
+
+    /**
+     * Stops the ImageWorker when all requests have been aborted.
+     */
+    protected synchronized void requestAborted() {
+        for (WaitingRequest request : requests) {
+            if (!request.isCompleted()) {
+                return;
+            }
+        }
+        closed = true;
+        imageWorker.stopNow();
+    }
+
+    /**
+     * Returns the requests that are still waiting and stops accepting new
+     * requests.
+     * 
+     * @return
+     */
+    protected synchronized List<WaitingRequest> closeRequests() {
+        closed = true;
+        List<WaitingRequest> waiting = new ArrayList<WaitingRequest>(requests.size());
+        for (WaitingRequest request : requests) {
+            if (!request.writing && request.setRendered()) {
+                waiting.add(request);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Schedules the render timeout of the request. The timeout is counted
+     * from the start of the request.
+     * 
+     * @param request
+     * @return
+     */
+    protected static synchronized ScheduledFuture<?> scheduleRenderTimeout(final WaitingRequest request) {
+        if (renderTimerExecutor == null) {
+            renderTimerExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "digilib-rendertimer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            renderTimerExecutor.setRemoveOnCancelPolicy(true);
+        }
+        long delay = Math.max(0, timeout - (System.currentTimeMillis() - request.startTime));
+        try {
+            return renderTimerExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request.renderTimedOut();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            return null;
+        }
     }
 
     /**
-     * runs the ImageWorker and writes the image to the ServletResponse.
+     * Stops the render timeout timer.
+     */
+    public static synchronized void shutdown() {
+        if (renderTimerExecutor != null) {
+            renderTimerExecutor.shutdownNow();
+            renderTimerExecutor = null;
+        }
+    }
+
+    /**
+     * runs the ImageWorker and writes the image to the ServletResponses.
      */
     @Override
     public void run() {
@@ -96,7 +385,8 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
              * render the image
              */
             DocuImage img = imageWorker.call();
-            if (completed) {
+            List<WaitingRequest> waiting = closeRequests();
+            if (waiting.isEmpty()) {
                 logger.debug("AsyncServletWorker already completed (after scaling)!");
                 return;
             }
@@ -112,84 +402,124 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             /*
              *  send the image
              */
-            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
-            ServletOps.sendImage(img, mt, response, logger);
-            
-            logger.debug("Job done in: "
-                    + (System.currentTimeMillis() - startTime) + "ms");
+            String etag = jobinfo.getETag();
+            if (nonBlocking) {
+                // encode the image once (and put it in the cache)
+                EncodedImage eimg = EncodedImage.encode(img, jobinfo.getOutputMimeType(), jobinfo.getSourceMTime());
+                if (imageCache != null) {
+                    imageCache.put(jobinfo.getCanonicalKey(), eimg);
+                }
+                // hand the image to the container and free this thread
+                for (WaitingRequest request : waiting) {
+                    try {
+                        request.getResponse().setHeader("ETag", etag);
+                        request.writing = true;
+                        try {
+                            NonBlockingImageWriter.write(request, eimg);
+                        } catch (IllegalStateException e) {
+                            // non-blocking output not possible -- send now
+                            logger.warn("Unable to use non-blocking output: " + e);
+                            request.writing = false;
+                            ServletOps.sendImage(eimg, request.getResponse(), logger);
+                        }
+                    } catch (Exception e) {
+                        // only this request failed
+                        logger.error("Error sending image: " + e);
+                        request.writing = false;
+                        request.abort(Error.FILE, null);
+                    }
+                }
+            } else if (imageCache != null || waiting.size() > 1) {
+                // encode the image once (and put it in the cache)
+                EncodedImage eimg = EncodedImage.encode(img, jobinfo.getOutputMimeType(), jobinfo.getSourceMTime());
+                if (imageCache != null) {
+                    imageCache.put(jobinfo.getCanonicalKey(), eimg);
+                }
+                for (WaitingRequest request : waiting) {
+                    try {
+                        request.getResponse().setHeader("ETag", etag);
+                        ServletOps.sendImage(eimg, request.getResponse(), logger);
+                    } catch (ServletException e) {
+                        logger.error("Servlet error: ", e);
+                    }
+                    logger.debug("Job done in: "
+                            + (System.currentTimeMillis() - request.startTime) + "ms");
+                }
+            } else {
+                WaitingRequest request = waiting.get(0);
+                request.getResponse().setHeader("ETag", etag);
+                ServletOps.sendImage(img, mt, request.getResponse(), logger);
+                logger.debug("Job done in: "
+                        + (System.currentTimeMillis() - request.startTime) + "ms");
+            }
         } catch (ImageOpException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.IMAGE, null,
-                    (HttpServletResponse) asyncContext.getResponse());
+            for (WaitingRequest request : closeRequests()) {
+                request.abort(Error.IMAGE, null);
+            }
         } catch (IOException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.FILE, null,
-                    (HttpServletResponse) asyncContext.getResponse());
+            for (WaitingRequest request : closeRequests()) {
+                request.abort(Error.FILE, null);
+            }
         } catch (ServletException e) {
             logger.error("Servlet error: ", e);
         } catch (Exception e) {
             logger.error("Other error: ", e);
         } finally {
-            if (completed) {
-                logger.debug("AsyncServletWorker already completed (finally)!");
-            } else {
-                // submit response
-                logger.debug("context complete.");
-                completed = true;
-                asyncContext.complete();
+            for (WaitingRequest request : closeRequests()) {
+                request.complete();
             }
         }
 
     }
 
-    @Override
-    public void onStartAsync(AsyncEvent event) throws IOException {
-        logger.debug("onStartAsync called (why?)");
+    public static long getTimeout() {
+        return timeout;
     }
 
-    @Override
-    public void onComplete(AsyncEvent event) throws IOException {
-        logger.debug("AsyncServletWorker onComplete");
-        // make sure complete isn't called twice
-        completed = true;
+    public static void setTimeout(long timeout) {
+        AsyncServletWorker.timeout = timeout;
     }
 
-    @Override
-    public void onError(AsyncEvent event) throws IOException {
-        logger.error("AsyncServletWorker onError: " + event.toString());
-        if (completed) {
-            logger.debug("AsyncServletWorker already completed (TimeOut)!");
-            return;
-        }
-        imageWorker.stopNow();
-        completed = true;
-        Scaler.digilibError(errMsgType, Error.UNKNOWN, null,
-                (HttpServletResponse) asyncContext.getResponse());
-        asyncContext.complete();
+    public static long getWriteTimeout() {
+        return writeTimeout;
     }
 
-    @Override
-    public void onTimeout(AsyncEvent event) throws IOException {
-        logger.error("AsyncServletWorker TIMED OUT after "
-                + (System.currentTimeMillis() - startTime)
-                + "ms! (increase worker-timeout?)");
-        if (completed) {
-            logger.debug("AsyncServletWorker already completed (TimeOut)!");
-            return;
+    public static void setWriteTimeout(long writeTimeout) {
+        AsyncServletWorker.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Returns if the container supports non-blocking output 
+     * (Servlet 3.1 WriteListener).
+     * 
+     * @return
+     */
+    public static boolean isNonBlockingAvailable() {
+        try {
+            Class.forName("javax.servlet.WriteListener");
+            ServletOutputStream.class.getMethod("isReady");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (NoSuchMethodException e) {
+            return false;
         }
-        imageWorker.stopNow();
-        completed = true;
-        Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!",
-                (HttpServletResponse) asyncContext.getResponse());
-        asyncContext.complete();
     }
 
-    public static long getTimeout() {
-        return timeout;
+    public static boolean isNonBlocking() {
+        return nonBlocking;
     }
 
-    public static void setTimeout(long timeout) {
-        AsyncServletWorker.timeout = timeout;
+    /**
+     * Sets if images are written with non-blocking output. Ignored if the
+     * container does not support it.
+     * 
+     * @param nonBlocking
+     */
+    public static void setNonBlocking(boolean nonBlocking) {
+        AsyncServletWorker.nonBlocking = nonBlocking && isNonBlockingAvailable();
     }
 
 }
@@ -0,0 +1,123 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * NonBlockingImageWriter.java
+ *
+ * Writes an encoded image to an asynchronous response without blocking.
+ *
+ * %%
+ * Copyright (C) 2016 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ *
+ * Author: Robert Casties (robcast@users.sourceforge.net)
+ */
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import digilib.image.EncodedImage;
+import digilib.servlet.AsyncServletWorker.WaitingRequest;
+
+/**
+ * Writes an encoded image to the response of a waiting request with the
+ * non-blocking output of the Servlet 3.1 API. The container calls
+ * onWritePossible whenever the client can take more data, so no thread
+ * waits for slow clients. The request is completed when all data has been
+ * written.
+ *
+ * This class needs a Servlet 3.1 container. Use
+ * AsyncServletWorker.isNonBlockingAvailable() before touching it.
+ *
+ * @author casties
+ *
+ */
+public class NonBlockingImageWriter implements WriteListener {
+
+    protected static Logger logger = Logger.getLogger(NonBlockingImageWriter.class);
+
+    /** size of the chunks written at once */
+    protected static final int CHUNK_SIZE = 64 * 1024;
+
+    /** the request */
+    protected WaitingRequest request;
+    /** the output stream of the response */
+    protected ServletOutputStream out;
+    /** the encoded image data */
+    protected byte[] data;
+    /** the length of the data */
+    protected int length;
+    /** the position of the next byte to write */
+    protected int pos = 0;
+
+    protected NonBlockingImageWriter(WaitingRequest request, ServletOutputStream out, EncodedImage img) {
+        this.request = request;
+        this.out = out;
+        this.data = img.getData();
+        this.length = img.getLength();
+    }
+
+    /**
+     * Starts writing the image to the response of the request. The request
+     * is completed when all data has been written.
+     *
+     * @param request
+     * @param img
+     * @throws IOException
+     */
+    public static void write(WaitingRequest request, EncodedImage img) throws IOException {
+        HttpServletResponse response = request.getResponse();
+        response.setContentType(img.getMimeType());
+        response.setContentLength(img.getLength());
+        ServletOutputStream out = response.getOutputStream();
+        // the container calls onWritePossible when we can start
+        out.setWriteListener(new NonBlockingImageWriter(request, out, img));
+    }
+
+    /* (non-Javadoc)
+     * @see javax.servlet.WriteListener#onWritePossible()
+     */
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (pos >= length) {
+                logger.debug("NonBlockingImageWriter done in " + (System.currentTimeMillis() - request.startTime)
+                        + "ms");
+                request.complete();
+                return;
+            }
+            int len = Math.min(CHUNK_SIZE, length - pos);
+            out.write(data, pos, len);
+            pos += len;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.servlet.WriteListener#onError(java.lang.Throwable)
+     */
+    @Override
+    public void onError(Throwable t) {
+        logger.error("NonBlockingImageWriter error after " + pos + " of " + length + " bytes: " + t);
+        request.complete();
+    }
+
+}
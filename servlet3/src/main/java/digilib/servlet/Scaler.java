@@ -46,10 +46,11 @@ import digilib.conf.DigilibConfiguration;
 import digilib.conf.DigilibServlet3Configuration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.EncodedImage;
+import digilib.image.ImageCache;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
 
@@ -89,6 +90,12 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     protected DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** cache for rendered images */
+    protected ImageCache imageCache;
+
+    /** share jobs between identical requests */
+    protected boolean coalesceJobs = true;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -145,6 +152,10 @@ public class Scaler extends HttpServlet {
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
 
+        // cache for rendered images
+        imageCache = (ImageCache) dlConfig.getValue("servlet.image.cache");
+        coalesceJobs = dlConfig.getAsBoolean("worker-coalesce-jobs");
+
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
         notfoundImgFile = ServletOps.getFile(dlConfig.getAsFile("notfound-image"), context);
@@ -167,10 +178,7 @@ public class Scaler extends HttpServlet {
         try {
             // create new digilib request
             DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-            DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-            if (dd != null) {
-                mtime = dd.getDirMTime() / 1000 * 1000;
-            }
+            mtime = ServletOps.getImageLastModified(dirCache, dlReq);
         } catch (Exception e) {
             logger.error("error in getLastModified: " + e.getMessage());
         }
@@ -285,6 +293,14 @@ public class Scaler extends HttpServlet {
              */
             ImageInput fileToLoad = jobTicket.getInput();
 
+            /*
+             * set caching policy for the base directory of the image
+             */
+            String cacheControl = ServletOps.getCacheControl(dlConfig, fileToLoad);
+            if (cacheControl != null) {
+                response.setHeader("Cache-Control", cacheControl);
+            }
+
             /*
              * if requested, send image as a file
              */
@@ -295,7 +311,7 @@ public class Scaler extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -305,11 +321,36 @@ public class Scaler extends HttpServlet {
              */
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            /*
+             * send 304 if the client has the image already
+             */
+            String etag = jobTicket.getETag();
+            if (ServletOps.isNotModified(request, etag, -1)) {
+                logger.debug("Image not modified.");
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            /*
+             * send the image from the cache if possible
+             */
+            if (imageCache != null) {
+                EncodedImage img = imageCache.get(jobTicket.getCanonicalKey(), jobTicket.getSourceMTime());
+                if (img != null) {
+                    logger.debug("Sending cached image.");
+                    response.setHeader("ETag", etag);
+                    ServletOps.sendImage(img, response, logger);
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+
             /*
              * check load of workers
              */
@@ -323,12 +364,19 @@ public class Scaler extends HttpServlet {
              * dispatch worker job to be done asynchronously
              */
             AsyncContext asyncCtx = request.startAsync();
-            // create job
-            AsyncServletWorker job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime);
-            // AsyncServletWorker is its own AsyncListener
-            asyncCtx.addListener(job);
-            // submit job
-            imageJobCenter.submit(job);
+            // create job (registers its AsyncListener)
+            AsyncServletWorker job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime, imageCache);
+            if (coalesceJobs) {
+                // submit job or share job of identical request in progress
+                AsyncServletWorker sharedJob = imageJobCenter.submitShared(jobTicket.getCanonicalKey(), job);
+                if (sharedJob != job && !sharedJob.shareWith(job)) {
+                    // shared job is already sending its image
+                    imageJobCenter.submit(job);
+                }
+            } else {
+                // submit job
+                imageJobCenter.submit(job);
+            }
             // we're done for now
 
         } catch (ImageOpException e) {
@@ -381,6 +429,10 @@ public class Scaler extends HttpServlet {
             if (response.isCommitted()) {
                 // response already committed
                 logger.warn("Response committed for error " + msg);
+            } else {
+                // don't cache or revalidate errors: drop the validators of the image
+                response.reset();
+                response.setHeader("Cache-Control", "no-store");
             }
             if (type == ErrMsg.TEXT) {
                 ServletOps.htmlMessage(msg, response);
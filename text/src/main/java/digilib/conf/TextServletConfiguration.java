@@ -30,6 +30,7 @@ package digilib.conf;
 import java.io.File;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
 
 import digilib.io.AliasingDocuDirCache;
 import digilib.io.DocuDirCache;
@@ -135,4 +136,20 @@ public class TextServletConfiguration extends DigilibServletConfiguration {
         return getCurrentConfig(context);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see digilib.conf.DigilibServletConfiguration#contextDestroyed(javax.servlet.ServletContextEvent)
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent cte) {
+        DigilibServletConfiguration config = getContextConfig(cte.getServletContext());
+        // stop watching text directories
+        DocuDirCache dirCache = (DocuDirCache) config.getValue(TEXT_DIR_CACHE_KEY);
+        if (dirCache != null) {
+            dirCache.shutdown();
+        }
+        super.contextDestroyed(cte);
+    }
+
 }
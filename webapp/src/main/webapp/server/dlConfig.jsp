@@ -25,6 +25,12 @@
           digilib.conf.DigilibServletConfiguration,
           digilib.conf.DigilibServletRequest,
           digilib.io.DocuDirCache,
+          digilib.io.ImageIndex,
+          digilib.io.ImageIdentifier,
+          digilib.image.ImageCache,
+          digilib.image.StripeExecutor,
+          digilib.image.ImageCodecPool,
+          digilib.image.ImageBufferPool,
           digilib.image.DocuImageFactory,
           java.io.File"%>
 <%!
@@ -55,6 +61,8 @@ dlRequest.setValue("pt", docBean.getNumPages(dlRequest));
 DocuDirCache dirCache = (DocuDirCache) dlConfig.getValue("servlet.dir.cache");
 // image JobCenter
 DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.worker.imageexecutor");        
+// image cache
+ImageCache imageCache = (ImageCache) dlConfig.getValue("servlet.image.cache");
 
 %>
 
@@ -127,6 +135,26 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
     <td>currently running</td><td><b><%= imageProcessor.getRunningJobs() %></b></td>
     <td></td>
   </tr>
+  <tr>
+    <td>shared jobs</td><td><b><%= imageProcessor.getSharedJobs() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>requests attached to shared jobs</td><td><b><%= imageProcessor.getCoalescedJobs() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>pixel operation threads</td><td><b><%= StripeExecutor.getParallelism() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>pooled image readers/writers used</td><td><b><%= ImageCodecPool.getHits() %></b></td>
+    <td>(<%= ImageCodecPool.getMisses() %> created)</td>
+  </tr>
+  <tr>
+    <td>pooled image buffers used</td><td><b><%= ImageBufferPool.getHits() %></b></td>
+    <td>(<%= ImageBufferPool.getMisses() %> allocated, <%= ImageBufferPool.getSize() %> of <%= ImageBufferPool.getMaxSize() %> bytes idle)</td>
+  </tr>
 </table>
 
 <h2>Webapp</h2>
@@ -156,7 +184,60 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
 	<td>misses</td><td><b><%= dirCache.getMisses() %></b></td>
     <td></td>
   </tr>
+  <tr>
+	<td>restored</td><td><b><%= dirCache.getRestored() %></b></td>
+    <td>directories restored from snapshot</td>
+  </tr>
+  <tr>
+	<td>negative hits</td><td><b><%= dirCache.getNegativeHits() %></b></td>
+    <td>requests for missing paths (<%= dirCache.getNegativeSize() %> paths remembered)</td>
+  </tr>
+  <tr>
+	<td>evictions</td><td><b><%= dirCache.getEvictions() %></b></td>
+    <td>(limits: <%= dirCache.getMaxDirs() %> directories, <%= dirCache.getMaxFiles() %> files, 0 means no limit)</td>
+  </tr>
+<% if (dirCache.getWatcher() != null) { %>
+  <tr>
+	<td>watched</td><td><b><%= dirCache.getWatcher().getWatchedDirs() %></b></td>
+    <td>directories (<%= dirCache.getWatcher().getChanges() %> changes reported)</td>
+  </tr>
+<% } %>
+  <tr>
+	<td>image index</td><td><b><%= ImageIndex.getHits() %></b></td>
+    <td>images identified from index (<%= ImageIndex.getMisses() %> not indexed)</td>
+  </tr>
+  <tr>
+	<td>background identification</td><td><b><%= ImageIdentifier.getIdentified() %></b></td>
+    <td>images identified in the background (<%= ImageIdentifier.getWaitingJobs() %> jobs waiting, <%= ImageIdentifier.getDropped() %> dropped)</td>
+  </tr>
+</table>
+
+<% if (imageCache != null) { %>
+<h2>Image cache</h2>
+
+<table>
+  <tr>
+    <td>memory</td><td><b><%= imageCache.getMemEntries() %></b></td>
+    <td>images (<%= imageCache.getMemSize() %> bytes)</td>
+  </tr>
+  <tr>
+    <td>disk</td><td><b><%= imageCache.getDiskEntries() %></b></td>
+    <td>images (<%= imageCache.getDiskSize() %> bytes)</td>
+  </tr>
+  <tr>
+    <td>hits</td><td><b><%= imageCache.getHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>misses</td><td><b><%= imageCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>invalidations</td><td><b><%= imageCache.getInvalidations() %></b></td>
+    <td></td>
+  </tr>
 </table>
+<% } %>
 
 <h2>JVM configuration</h2>
 